@@ -190,10 +190,14 @@ public class CoffSection {
 		else
 			initlen = pageSize;
 
-		if (initlen > 0)
+		if (initlen > 0) {
 			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+			Machine.stats().numCOFFReads++;
+		}
 
 		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+
+		Machine.processor().invalidateDecodedPage(ppn);
 	}
 
 	/** The COFF object to which this section belongs. */
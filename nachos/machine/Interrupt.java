@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,6 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
 	}
 
 	/**
@@ -119,38 +117,127 @@ public final class Interrupt {
 		return !enabled;
 	}
 
-	private void schedule(long when, String type, Runnable handler) {
+	/**
+	 * Enable interrupts and wait for the next one, as an idle processor would.
+	 * Rather than advancing the simulated time one tick at a time, this
+	 * advances it in one step to the tick on which the earliest pending
+	 * interrupt occurs, and invokes the handlers that are due. The time is
+	 * charged as kernel ticks, so interrupts occur at exactly the same
+	 * simulated time as if the caller had spun.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled, so that the caller can check that there is
+	 * nothing to do without an interrupt slipping in before it waits. If no
+	 * interrupt is pending, nothing can ever give the caller anything to do,
+	 * so the machine halts.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (numPending == 0) {
+			System.out.println("No pending interrupts while idle, halting");
+			Machine.halt();
+		}
+
+		enabled = true;
+
+		long ticks = ticksUntilNextInterrupt();
+		long count = (ticks + Stats.KernelTick - 1) / Stats.KernelTick;
+
+		tick(true, (int) Math.max(1, Math.min(count, Integer.MAX_VALUE)));
+	}
+
+	private long schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (numPending == pendingTime.length) {
+			int capacity = pendingTime.length * 2;
+			Lib.assertTrue(capacity <= 1 << slotBits);
+
+			pendingTime = Arrays.copyOf(pendingTime, capacity);
+			pendingId = Arrays.copyOf(pendingId, capacity);
+			pendingType = Arrays.copyOf(pendingType, capacity);
+			pendingHandler = Arrays.copyOf(pendingHandler, capacity);
+			slotIndex = Arrays.copyOf(slotIndex, capacity);
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
+		}
+
+		// later interrupts get larger ids, whatever slot they hold
+		int slot = numFreeSlots > 0 ? freeSlots[--numFreeSlots] : numSlots++;
+		long id = (numPendingInterruptsCreated++ << slotBits) | slot;
 
-		pending.add(toOccur);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+		int i = numPending++;
+		set(i, time, id, type, handler);
+		siftUp(i);
+
+		return id;
+	}
+
+	private boolean cancel(long id) {
+		int slot = (int) (id & slotMask);
+		if (id < 0 || slot >= numSlots)
+			return false;
+
+		// the slot may since have been reused by a later interrupt
+		int i = slotIndex[slot];
+		if (i == -1 || pendingId[i] != id)
+			return false;
+
+		Lib.debug(dbgInt, "Cancelling the " + pendingType[i]
+				+ " interrupt handler at time = " + pendingTime[i]);
+
+		removeAt(i);
+		return true;
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
+		Lib.assertTrue(count > 0);
+
 		Stats stats = privilege.stats;
 
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += (long) Stats.KernelTick * count;
+			stats.totalTicks += (long) Stats.KernelTick * count;
 		}
 		else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += (long) Stats.UserTick * count;
+			stats.totalTicks += (long) Stats.UserTick * count;
 		}
 
 		if (Lib.test(dbgInt))
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
 		enabled = false;
-		checkIfDue();
+
+		// nothing can be due before the earliest pending interrupt
+		if (stats.totalTicks >= nextDue() || Lib.test(dbgInt))
+			checkIfDue();
+
 		enabled = true;
 	}
 
+	private long nextDue() {
+		return numPending == 0 ? Long.MAX_VALUE : pendingTime[0];
+	}
+
+	private long ticksUntilNextInterrupt() {
+		// every tick is traced when debugging interrupts
+		if (Lib.test(dbgInt))
+			return 0;
+
+		return nextDue() - privilege.stats.totalTicks;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,27 +246,22 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextDue() > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (nextDue() <= time) {
+			String type = pendingType[0];
+			Runnable handler = pendingHandler[0];
+			removeAt(0);
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,46 +272,98 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
-		}
+		// the heap is only partially ordered, so sort a copy
+		Integer[] order = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			order[i] = i;
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				if (pendingTime[i] != pendingTime[j])
+					return Long.compare(pendingTime[i], pendingTime[j]);
+				else
+					return Long.compare(pendingId[i], pendingId[j]);
+			}
+		});
+
+		for (int i = 0; i < numPending; i++)
+			System.out.println("  " + pendingType[order[i]] + ", scheduled at "
+					+ pendingTime[order[i]]);
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * Test whether the pending interrupt at heap index <i>i</i> should occur
+	 * before the one at heap index <i>j</i>. Interrupts due at the same time
+	 * occur in the order in which they were scheduled.
+	 */
+	private boolean before(int i, int j) {
+		if (pendingTime[i] != pendingTime[j])
+			return pendingTime[i] < pendingTime[j];
+		else
+			return pendingId[i] < pendingId[j];
+	}
+
+	private void set(int i, long time, long id, String type, Runnable handler) {
+		pendingTime[i] = time;
+		pendingId[i] = id;
+		pendingType[i] = type;
+		pendingHandler[i] = handler;
+
+		slotIndex[(int) (id & slotMask)] = i;
+	}
+
+	private void swap(int i, int j) {
+		long time = pendingTime[i], id = pendingId[i];
+		String type = pendingType[i];
+		Runnable handler = pendingHandler[i];
+
+		set(i, pendingTime[j], pendingId[j], pendingType[j], pendingHandler[j]);
+		set(j, time, id, type, handler);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0 && before(i, (i - 1) / 2)) {
+			swap(i, (i - 1) / 2);
+			i = (i - 1) / 2;
 		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= numPending)
+				break;
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
+			if (child + 1 < numPending && before(child + 1, child))
+				child++;
+
+			if (!before(child, i))
+				break;
+
+			swap(i, child);
+			i = child;
 		}
+	}
 
-		long time;
+	private void removeAt(int i) {
+		int slot = (int) (pendingId[i] & slotMask);
+		slotIndex[slot] = -1;
+		freeSlots[numFreeSlots++] = slot;
 
-		String type;
+		numPending--;
 
-		Runnable handler;
+		if (i != numPending) {
+			set(i, pendingTime[numPending], pendingId[numPending],
+					pendingType[numPending], pendingHandler[numPending]);
+			siftDown(i);
+			siftUp(i);
+		}
 
-		private long id;
+		// don't hold on to handlers that will never run
+		pendingType[numPending] = null;
+		pendingHandler[numPending] = null;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,17 +372,58 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/*
+	 * Pending interrupts, kept as a binary min-heap ordered by (time, id) in
+	 * parallel arrays, so that scheduling an interrupt allocates nothing.
+	 */
+	private long[] pendingTime = new long[initialCapacity];
+
+	private long[] pendingId = new long[initialCapacity];
+
+	private String[] pendingType = new String[initialCapacity];
+
+	private Runnable[] pendingHandler = new Runnable[initialCapacity];
+
+	private int numPending = 0;
+
+	/*
+	 * Every pending interrupt holds a slot, stored in the low bits of its id.
+	 * slotIndex maps a slot to the heap index of the interrupt holding it, or
+	 * to -1 if the slot is free, so that cancel() need not search the heap.
+	 */
+	private int[] slotIndex = new int[initialCapacity];
+
+	private int[] freeSlots = new int[initialCapacity];
+
+	private int numFreeSlots = 0, numSlots = 0;
+
+	private static final int initialCapacity = 16;
+
+	private static final int slotBits = 24;
+
+	private static final long slotMask = (1 << slotBits) - 1;
 
 	private static final char dbgInt = 'i';
 
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-		public void schedule(long when, String type, Runnable handler) {
-			Interrupt.this.schedule(when, type, handler);
+		public long schedule(long when, String type, Runnable handler) {
+			return Interrupt.this.schedule(when, type, handler);
+		}
+
+		public boolean cancel(long id) {
+			return Interrupt.this.cancel(id);
 		}
 
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long ticksUntilNextInterrupt() {
+			return Interrupt.this.ticksUntilNextInterrupt();
+		}
 	}
 }
@@ -197,8 +197,16 @@ public final class Machine {
 		if (Config.getBoolean("Machine.stubFileSystem"))
 			stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
-		if (Config.getBoolean("Machine.networkLink"))
-			networkLink = new NetworkLink(privilege);
+		if (Config.getBoolean("Machine.networkLink")) {
+			int nodes = Config.getInteger("NetworkLink.nodes", 1);
+			Lib.assertTrue(nodes >= 1 && nodes <= Packet.linkAddressLimit);
+
+			networkLinks = new NetworkLink[nodes];
+			for (int i = 0; i < nodes; i++)
+				networkLinks[i] = new NetworkLink(privilege, i);
+
+			networkLink = networkLinks[0];
+		}
 	}
 
 	private static void checkUserClasses() {
@@ -369,6 +377,21 @@ public final class Machine {
 		return networkLink;
 	}
 
+	/**
+	 * Return the network link of the specified simulated node. Node 0 is this
+	 * machine's own link; <tt>nachos.conf</tt> can ask for more nodes on an
+	 * in-memory network, so that several nodes can be simulated at once.
+	 * 
+	 * @param node the node number.
+	 * @return the node's network link, or <tt>null</tt> if it is not present.
+	 */
+	public static NetworkLink networkLink(int node) {
+		if (networkLinks == null || node < 0 || node >= networkLinks.length)
+			return null;
+
+		return networkLinks[node];
+	}
+
 	/**
 	 * Return the autograder.
 	 * 
@@ -392,6 +415,8 @@ public final class Machine {
 
 	private static NetworkLink networkLink = null;
 
+	private static NetworkLink[] networkLinks = null;
+
 	private static AutoGrader autoGrader = null;
 
 	private static String autoGraderClassName = "nachos.ag.AutoGrader";
@@ -436,6 +461,30 @@ public final class Machine {
 
 	private static String processClassName = null;
 
+	/**
+	 * Record that the kernel read a page from its swap file.
+	 */
+	public static void incrNumSwapReads() {
+		stats.numSwapReads++;
+	}
+
+	/**
+	 * Record that the kernel wrote a page to its swap file.
+	 */
+	public static void incrNumSwapWrites() {
+		stats.numSwapWrites++;
+	}
+
+	/**
+	 * Return the statistics kept by the machine, for devices in this package
+	 * that do not otherwise have privileged access to them.
+	 * 
+	 * @return the machine statistics.
+	 */
+	static Stats stats() {
+		return stats;
+	}
+
 	private static NachosSecurityManager securityManager;
 
 	private static Privilege privilege;
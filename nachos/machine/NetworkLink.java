@@ -5,11 +5,11 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -57,8 +57,50 @@ import java.net.SocketException;
  * network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ * 
+ * <p>
+ * Normally each link is a UDP socket on the local host, so that Nachos
+ * instances in different JVMs can talk to each other. <tt>nachos.conf</tt>
+ * can instead connect links through an in-memory network, which hands packets
+ * directly from one link to another within this JVM, after a configurable
+ * delay. Since delivery is then driven by the simulated clock alone, runs on
+ * the in-memory network are repeatable.
+ * 
+ * <p>
+ * Each link is configured by these keys in <tt>nachos.conf</tt>:
+ * <ul>
+ * <li><tt>NetworkLink.reliability</tt>: the long-run fraction of packets sent
+ * that are not dropped.
+ * <li><tt>NetworkLink.lossBurst</tt>: the average number of packets dropped in
+ * a row. The default, 1, drops each packet independently; larger values drop
+ * packets in bursts, at the same overall rate.
+ * <li><tt>NetworkLink.sendTime</tt>: the number of ticks it takes to send a
+ * packet, which limits the bandwidth of the link.
+ * <li><tt>NetworkLink.latency</tt>: on the in-memory network, the number of
+ * ticks a packet takes to reach its destination once it has been sent.
+ * </ul>
+ * Each key can be overridden for a single node by inserting its node number,
+ * as in <tt>NetworkLink.2.latency</tt>. The settings of the sending link
+ * apply to each packet.
+ * 
+ * <p>
+ * Either way, arriving packets wait in a small inbox until the kernel receives
+ * them. A UDP link's socket is non-blocking, and the receive interrupt drains
+ * whatever has arrived on it into the inbox, so no separate thread is needed
+ * to wait for packets. The kernel is still offered one packet per receive
+ * interrupt, and each packet owns its bytes, since the kernel may keep a
+ * packet for as long as it likes.
  */
 public class NetworkLink {
+	/**
+	 * Allocate a new network link for node 0.
+	 * 
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	public NetworkLink(Privilege privilege) {
+		this(privilege, 0);
+	}
+
 	/**
 	 * Allocate a new network link.
 	 * 
@@ -67,41 +109,49 @@ public class NetworkLink {
 	 * reliability, between 0 and 1, is the probability that any particular
 	 * packet will not get dropped by the network.
 	 * 
+	 * <p>
+	 * <tt>NetworkLink.fabric</tt> selects the network, either <tt>udp</tt>
+	 * (the default) or <tt>memory</tt>. The other settings of the link are
+	 * described above.
+	 * 
 	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param node the number of the simulated node this link belongs to.
 	 */
-	public NetworkLink(Privilege privilege) {
+	public NetworkLink(Privilege privilege, int node) {
 		System.out.print(" network");
 
 		this.privilege = privilege;
 
-		try {
-			localHost = InetAddress.getLocalHost();
-		}
-		catch (UnknownHostException e) {
-			localHost = null;
-		}
+		reliability = Config.getDouble(nodeKey(node, "reliability"),
+				Config.getDouble("NetworkLink.reliability"));
+		Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
-		Lib.assertTrue(localHost != null);
+		lossBurst = Config.getDouble(nodeKey(node, "lossBurst"),
+				Config.getDouble("NetworkLink.lossBurst", 1.0));
+		Lib.assertTrue(lossBurst >= 1.0);
 
-		reliability = Config.getDouble("NetworkLink.reliability");
-		Lib.assertTrue(reliability > 0 && reliability <= 1.0);
+		// the chance of a burst starting that gives the requested loss rate
+		double loss = 1.0 - reliability;
+		burstStart = loss / (lossBurst * reliability);
+		Lib.assertTrue(burstStart <= 1.0,
+				"NetworkLink.lossBurst is too short for the reliability");
 
-		socket = null;
+		String fabric = Config.getString("NetworkLink.fabric", "udp");
+		Lib.assertTrue(fabric.equals("udp") || fabric.equals("memory"),
+				"unknown NetworkLink.fabric: " + fabric);
 
-		for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
-			try {
-				socket = new DatagramSocket(portBase + linkAddress, localHost);
-				break;
-			}
-			catch (SocketException e) {
-			}
-		}
+		inMemory = fabric.equals("memory");
 
-		if (socket == null) {
-			System.out.println("");
-			System.out.println("Unable to acquire a link address!");
-			Lib.assertNotReached();
-		}
+		latency = Config.getInteger(nodeKey(node, "latency"),
+				Config.getInteger("NetworkLink.latency", Stats.NetworkTime));
+		sendTime = Config.getInteger(nodeKey(node, "sendTime"),
+				Config.getInteger("NetworkLink.sendTime", Stats.NetworkTime));
+		Lib.assertTrue(latency >= 1 && sendTime >= 1);
+
+		if (inMemory)
+			attachToMemoryFabric();
+		else
+			openSocket();
 
 		System.out.print("(" + linkAddress + ")");
 
@@ -117,15 +167,73 @@ public class NetworkLink {
 			}
 		};
 
+		drainChannel = new Runnable() {
+			public void run() {
+				drainChannel();
+			}
+		};
+
 		scheduleReceiveInterrupt();
+	}
 
-		Thread receiveThread = new Thread(new Runnable() {
-			public void run() {
-				receiveLoop();
+	private static String nodeKey(int node, String name) {
+		return "NetworkLink." + node + "." + name;
+	}
+
+	private void openSocket() {
+		try {
+			localHost = InetAddress.getLocalHost();
+		}
+		catch (UnknownHostException e) {
+			localHost = null;
+		}
+
+		Lib.assertTrue(localHost != null);
+
+		channel = null;
+
+		for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
+			DatagramChannel c = null;
+
+			try {
+				c = DatagramChannel.open();
+				c.bind(new InetSocketAddress(localHost, portBase + linkAddress));
+				c.configureBlocking(false);
+
+				channel = c;
+				break;
 			}
-		});
+			catch (IOException e) {
+				if (c != null) {
+					try {
+						c.close();
+					}
+					catch (IOException e2) {
+					}
+				}
+			}
+		}
+
+		if (channel == null) {
+			System.out.println("");
+			System.out.println("Unable to acquire a link address!");
+			Lib.assertNotReached();
+		}
+	}
+
+	private void attachToMemoryFabric() {
+		synchronized (memoryFabric) {
+			for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
+				if (memoryFabric[linkAddress] == null) {
+					memoryFabric[linkAddress] = this;
+					return;
+				}
+			}
+		}
 
-		receiveThread.start();
+		System.out.println("");
+		System.out.println("Unable to acquire a link address!");
+		Lib.assertNotReached();
 	}
 
 	/**
@@ -165,23 +273,24 @@ public class NetworkLink {
 				receiveInterrupt);
 	}
 
-	private synchronized void receiveInterrupt() {
+	private void receiveInterrupt() {
 		Lib.assertTrue(incomingPacket == null);
 
-		if (incomingBytes != null) {
+		if (!inMemory)
+			privilege.doPrivileged(drainChannel);
+
+		if (numArrivals > 0) {
+			Packet p = arrivals[firstArrival];
+			arrivals[firstArrival] = null;
+			firstArrival = (firstArrival + 1) % arrivalLimit;
+			numArrivals--;
+
 			if (Machine.autoGrader().canReceivePacket(privilege)) {
-				try {
-					incomingPacket = new Packet(incomingBytes);
+				incomingPacket = p;
 
-					privilege.stats.numPacketsReceived++;
-				}
-				catch (MalformedPacketException e) {
-				}
+				privilege.stats.numPacketsReceived++;
 			}
 
-			incomingBytes = null;
-			notify();
-
 			if (incomingPacket == null)
 				scheduleReceiveInterrupt();
 			else if (receiveInterruptHandler != null)
@@ -192,6 +301,32 @@ public class NetworkLink {
 		}
 	}
 
+	/**
+	 * Move every packet waiting on the socket into the inbox, until the inbox
+	 * is full. Packets that do not fit stay on the socket until next time.
+	 */
+	private void drainChannel() {
+		try {
+			while (numArrivals < arrivalLimit) {
+				receiveBuffer.clear();
+				if (channel.receive(receiveBuffer) == null)
+					break;
+
+				receiveBuffer.flip();
+				byte[] packetBytes = new byte[receiveBuffer.remaining()];
+				receiveBuffer.get(packetBytes);
+
+				try {
+					arrive(new Packet(packetBytes));
+				}
+				catch (MalformedPacketException e) {
+				}
+			}
+		}
+		catch (IOException e) {
+		}
+	}
+
 	/**
 	 * Return the next packet received.
 	 * 
@@ -209,52 +344,15 @@ public class NetworkLink {
 		return p;
 	}
 
-	private void receiveLoop() {
-		while (true) {
-			synchronized (this) {
-				while (incomingBytes != null) {
-					try {
-						wait();
-					}
-					catch (InterruptedException e) {
-					}
-				}
-			}
-
-			byte[] packetBytes;
-
-			try {
-				byte[] buffer = new byte[Packet.maxPacketLength];
-
-				DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-
-				socket.receive(dp);
-
-				packetBytes = new byte[dp.getLength()];
-
-				System.arraycopy(buffer, 0, packetBytes, 0, packetBytes.length);
-			}
-			catch (IOException e) {
-				return;
-			}
-
-			synchronized (this) {
-				incomingBytes = packetBytes;
-			}
-		}
-	}
-
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				sendInterrupt);
+		privilege.interrupt.schedule(sendTime, "network send", sendInterrupt);
 	}
 
 	private void sendInterrupt() {
 		Lib.assertTrue(outgoingPacket != null);
 
 		// randomly drop packets, according to its reliability
-		if (Machine.autoGrader().canSendPacket(privilege)
-				&& Lib.random() <= reliability) {
+		if (Machine.autoGrader().canSendPacket(privilege) && !dropPacket()) {
 			// ok, no drop
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
@@ -270,12 +368,35 @@ public class NetworkLink {
 			sendInterruptHandler.run();
 	}
 
+	/**
+	 * Decide whether to drop the packet being sent. Losses are independent
+	 * unless <tt>lossBurst</tt> is more than 1, in which case the link
+	 * alternates between delivering packets and dropping them, with bursts of
+	 * drops that average <tt>lossBurst</tt> packets long.
+	 */
+	private boolean dropPacket() {
+		if (lossBurst == 1.0)
+			return Lib.random() > reliability;
+
+		if (inLossBurst)
+			inLossBurst = Lib.random() >= 1.0 / lossBurst;
+		else
+			inLossBurst = Lib.random() < burstStart;
+
+		return inLossBurst;
+	}
+
 	private void sendPacket() {
 		Packet p = outgoingPacket;
 		outgoingPacket = null;
 
+		if (inMemory) {
+			deliverInMemory(p);
+			return;
+		}
+
 		try {
-			socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
+			channel.send(ByteBuffer.wrap(p.packetBytes), new InetSocketAddress(
 					localHost, portBase + p.dstLink));
 
 			privilege.stats.numPacketsSent++;
@@ -284,6 +405,36 @@ public class NetworkLink {
 		}
 	}
 
+	/**
+	 * Hand a packet to its destination link on the in-memory network, where
+	 * it arrives after the link's latency. The packet is not copied, since
+	 * packets are never modified once they are built.
+	 */
+	private void deliverInMemory(final Packet p) {
+		final NetworkLink destination;
+
+		synchronized (memoryFabric) {
+			destination = memoryFabric[p.dstLink];
+		}
+
+		privilege.stats.numPacketsSent++;
+
+		if (destination == null)
+			return;
+
+		privilege.interrupt.schedule(latency, "network arrive", new Runnable() {
+			public void run() {
+				destination.arrive(p);
+			}
+		});
+	}
+
+	private void arrive(Packet p) {
+		// like a real network interface, drop packets that find no room
+		if (numArrivals < arrivalLimit)
+			arrivals[(firstArrival + numArrivals++) % arrivalLimit] = p;
+	}
+
 	/**
 	 * Send another packet. If a packet is already being sent, the result is not
 	 * defined.
@@ -315,25 +466,47 @@ public class NetworkLink {
 		networkID = (byte) (hash / 0x4E41);
 	}
 
+	// the links on the in-memory network, by link address
+	private static final NetworkLink[] memoryFabric = new NetworkLink[Packet.linkAddressLimit];
+
 	private Privilege privilege;
 
 	private Runnable receiveInterrupt;
 
 	private Runnable sendInterrupt;
 
+	private Runnable drainChannel;
+
 	private Runnable receiveInterruptHandler = null;
 
 	private Runnable sendInterruptHandler = null;
 
 	private InetAddress localHost;
 
-	private DatagramSocket socket;
+	private DatagramChannel channel;
+
+	private ByteBuffer receiveBuffer = ByteBuffer
+			.allocateDirect(Packet.maxPacketLength);
 
 	private byte linkAddress;
 
 	private double reliability;
 
-	private byte[] incomingBytes = null;
+	private double lossBurst, burstStart;
+
+	private boolean inLossBurst = false;
+
+	private boolean inMemory;
+
+	private int latency, sendTime;
+
+	// a ring of packets that arrived, but were not received yet; only ever
+	// used by interrupt handlers, so it needs no lock
+	private Packet[] arrivals = new Packet[arrivalLimit];
+
+	private int firstArrival = 0, numArrivals = 0;
+
+	private static final int arrivalLimit = 64;
 
 	private Packet incomingPacket = null;
 
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,17 +42,34 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		String engine = Config.getString("Processor.engine", "interpreter");
+		Lib.assertTrue(engine.equals("interpreter") || engine.equals("blocks"),
+				"Processor.engine should be interpreter or blocks");
+		usingBlocks = engine.equals("blocks");
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedInstructions = new DecodedInstruction[mainMemory.length / 4];
+		if (usingBlocks)
+			basicBlocks = new BasicBlock[mainMemory.length / 4];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+					tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0
+					&& tlbSize % tlbAssociativity == 0,
+					"Processor.tlbAssociativity should divide Processor.tlbSize");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			tlbIndex = new TLBIndex(tlbSize);
 		}
 		else {
 			translations = null;
@@ -93,18 +112,84 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// tracing output is produced one instruction at a time
+		if (usingBlocks && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble))
+			runBlocks(inst);
+
 		while (true) {
+			int budget = instructionBudget();
+			inst.executed = 0;
+
 			try {
-				inst.run();
+				while (inst.executed < budget) {
+					inst.run();
+					inst.executed++;
+				}
 			}
 			catch (MipsException e) {
+				settle(inst.executed);
 				e.handle();
+				privilege.interrupt.tick(false);
+				continue;
 			}
 
-			privilege.interrupt.tick(false);
+			settle(inst.executed);
 		}
 	}
 
+	/**
+	 * Execute user code one basic block at a time. Otherwise the same as the
+	 * loop in <tt>run()</tt>. Never returns.
+	 * 
+	 * @param inst the instruction state used to execute each block.
+	 */
+	private void runBlocks(Instruction inst) {
+		while (true) {
+			int budget = instructionBudget();
+			inst.executed = 0;
+
+			try {
+				while (inst.executed < budget)
+					inst.runBlock(budget);
+			}
+			catch (MipsException e) {
+				settle(inst.executed);
+				e.handle();
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			settle(inst.executed);
+		}
+	}
+
+	/**
+	 * Return the number of user instructions that can execute before the next
+	 * pending interrupt is due. Since user code cannot schedule interrupts,
+	 * these instructions can all run before any ticks are charged, and the
+	 * interrupt still occurs at exactly the same simulated time.
+	 * 
+	 * @return the number of instructions to run, at least one.
+	 */
+	private int instructionBudget() {
+		long ticks = privilege.interrupt.ticksUntilNextInterrupt();
+		long budget = (ticks + Stats.UserTick - 1) / Stats.UserTick;
+
+		return (int) Math.max(1, Math.min(budget, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Charge the ticks for the specified number of completed user
+	 * instructions.
+	 * 
+	 * @param executed the number of instructions that completed.
+	 */
+	private void settle(int executed) {
+		if (executed > 0)
+			privilege.interrupt.tick(false, executed);
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -175,6 +260,8 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+
+		flushTranslationCache();
 	}
 
 	/**
@@ -188,6 +275,22 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. The
+	 * TLB is divided into <tt>getTLBSize() / getTLBAssociativity()</tt> sets of
+	 * consecutive entries, and a virtual page <i>vpn</i> can only be matched
+	 * by an entry in set <tt><i>vpn</i> % (getTLBSize() /
+	 * getTLBAssociativity())</tt>. By default the TLB is fully associative,
+	 * i.e. has a single set.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbAssociativity;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +308,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * If the TLB is fully associative (the default), the location of an entry
+	 * within the TLB does not affect anything. Otherwise an entry is only
+	 * matched if it is stored in the set for its virtual page; see
+	 * <tt>getTLBAssociativity()</tt>.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -215,7 +320,37 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		int oldVPN = translations[number].vpn;
 		translations[number] = new TranslationEntry(entry);
+
+		indexTLB(oldVPN);
+		indexTLB(entry.vpn);
+
+		flushTranslationCache();
+	}
+
+	/**
+	 * Update <tt>tlbIndex</tt> for the specified virtual page, after a TLB
+	 * entry that did or now does map it has been written. As in a hardware
+	 * TLB, if several valid entries in the set match, the first one is used.
+	 * 
+	 * @param vpn the virtual page to update.
+	 */
+	private void indexTLB(int vpn) {
+		// negative page numbers can never match an address
+		if (vpn < 0)
+			return;
+
+		int first = (vpn % (tlbSize / tlbAssociativity)) * tlbAssociativity;
+
+		for (int i = first; i < first + tlbAssociativity; i++) {
+			if (translations[i].valid && translations[i].vpn == vpn) {
+				tlbIndex.put(vpn, i);
+				return;
+			}
+		}
+
+		tlbIndex.remove(vpn);
 	}
 
 	/**
@@ -292,6 +427,68 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
+		// fast path: same page as the last data reference
+		if (pageFromAddress(vaddr) == dataVPN && (vaddr & (size - 1)) == 0
+				&& (dataWritable || !writing))
+			return dataBase + offsetFromAddress(vaddr);
+
+		int paddr = translateEntry(vaddr, size, writing);
+
+		// only cache a page whose used (and dirty) bits are already set
+		if (!Lib.test(dbgProcessor)) {
+			dataVPN = pageFromAddress(vaddr);
+			dataBase = paddr - offsetFromAddress(vaddr);
+			dataWritable = writing;
+		}
+
+		return paddr;
+	}
+
+	/**
+	 * Translate the virtual address of an instruction fetch. Same as
+	 * <tt>translate(vaddr, 4, false)</tt>, but using a separate cached
+	 * translation, so that code and data references do not evict each other.
+	 * 
+	 * @param vaddr the virtual address of the instruction.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateFetch(int vaddr) throws MipsException {
+		if (pageFromAddress(vaddr) == fetchVPN && (vaddr & 0x3) == 0)
+			return fetchBase + offsetFromAddress(vaddr);
+
+		int paddr = translateEntry(vaddr, 4, false);
+
+		if (!Lib.test(dbgProcessor)) {
+			fetchVPN = pageFromAddress(vaddr);
+			fetchBase = paddr - offsetFromAddress(vaddr);
+		}
+
+		return paddr;
+	}
+
+	/**
+	 * Forget the cached translations used by <tt>translate()</tt> and
+	 * <tt>translateFetch()</tt>. Must be called whenever the kernel may have
+	 * changed the page table or TLB, i.e. whenever the kernel runs.
+	 */
+	private void flushTranslationCache() {
+		dataVPN = -1;
+		fetchVPN = -1;
+	}
+
+	/**
+	 * Translate a virtual address by looking up its translation entry, and
+	 * set the entry's used and dirty bits.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param size the size of the memory reference (must be 1, 2, or 4).
+	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateEntry(int vaddr, int size, boolean writing)
+			throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -319,14 +516,12 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look up the TLB entry for the vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
+			int index = tlbIndex.get(vpn);
+			if (index != -1)
+				entry = translations[index];
+
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
@@ -402,7 +597,47 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		// the word written may have been decoded as an instruction
+		decodedInstructions[paddr / 4] = null;
+	}
+
+	/**
+	 * Discard any decoded instructions cached for the specified physical page.
+	 * Called whenever the contents of the page are replaced wholesale, e.g. by
+	 * <tt>CoffSection.loadPage()</tt>.
+	 *
+	 * @param ppn the physical page whose contents have changed.
+	 */
+	void invalidateDecodedPage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		int first = ppn * pageSize / 4;
+		Arrays.fill(decodedInstructions, first, first + pageSize / 4, null);
+
+		if (basicBlocks != null)
+			Arrays.fill(basicBlocks, first, first + pageSize / 4, null);
+	}
+
+	/**
+	 * Return the decoded form of the instruction word at the specified
+	 * physical address, decoding it if it is not already cached.
+	 * 
+	 * @param paddr the word-aligned physical address of the instruction.
+	 * @param value the instruction word currently stored at <i>paddr</i>.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction decodeAt(int paddr, int value) {
+		DecodedInstruction decoded = decodedInstructions[paddr / 4];
+		if (decoded == null || decoded.value != value) {
+			decoded = new DecodedInstruction(value);
+			decodedInstructions[paddr / 4] = decoded;
+		}
+
+		return decoded;
 	}
 
 	/**
@@ -549,15 +784,39 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
+	/** <tt>true</tt> if executing user code a basic block at a time. */
+	private boolean usingBlocks;
+
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbAssociativity;
+
+	/** Maps each virtual page to the index of the TLB entry matching it. */
+	private TLBIndex tlbIndex;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/**
+	 * The most recently translated page of data: its virtual page number (or
+	 * -1 if none), the physical address of its first byte, and whether it may
+	 * be written without first setting its dirty bit.
+	 */
+	private int dataVPN = -1, dataBase;
+
+	private boolean dataWritable;
+
+	/**
+	 * The most recently translated page of code: its virtual page number (or
+	 * -1 if none), and the physical address of its first byte.
+	 */
+	private int fetchVPN = -1, fetchBase;
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -570,6 +829,19 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Decoded instructions, indexed by physical word address. An entry is only
+	 * used if its instruction word still matches main memory, since the kernel
+	 * may modify memory directly through <tt>getMemory()</tt>.
+	 */
+	private DecodedInstruction[] decodedInstructions;
+
+	/**
+	 * Basic blocks, indexed by the physical word address of their first
+	 * instruction. <tt>null</tt> unless the block engine is in use.
+	 */
+	private BasicBlock[] basicBlocks = null;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -582,6 +854,7 @@ public final class Processor {
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			flushTranslationCache();
 		}
 	}
 
@@ -609,6 +882,7 @@ public final class Processor {
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
+			flushTranslationCache();
 
 			Lib.assertTrue(exceptionHandler != null);
 
@@ -643,78 +917,99 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			paddr = translateFetch(registers[regPC]);
+			value = Lib.bytesToInt(mainMemory, paddr);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 		}
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+		/**
+		 * Execute the basic block starting at the current PC, adding the number
+		 * of instructions that complete to <tt>executed</tt>. Stops early if
+		 * control leaves the block, if the block no longer matches main memory,
+		 * or once <tt>executed</tt> reaches <i>limit</i>.
+		 * 
+		 * @param limit the maximum value of <tt>executed</tt>.
+		 */
+		private void runBlock(int limit) throws MipsException {
+			int vaddr = registers[regPC];
+			paddr = translateFetch(vaddr);
+
+			int first = paddr;
+			BasicBlock block = basicBlocks[first / 4];
+			if (block == null) {
+				block = new BasicBlock(first);
+				basicBlocks[first / 4] = block;
+			}
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
+			for (int i = 0; i < block.instructions.length; i++) {
+				DecodedInstruction decoded = block.instructions[i];
+
+				value = Lib.bytesToInt(mainMemory, paddr);
+				if (value != decoded.value) {
+					// code was overwritten; rebuild the block next time
+					basicBlocks[first / 4] = null;
+					return;
+				}
+
+				decode(decoded);
+				execute();
+				writeBack();
+				executed++;
+
+				vaddr += 4;
+				paddr += 4;
+
+				// a taken branch leaves the block after its delay slot
+				if (registers[regPC] != vaddr || executed == limit)
+					return;
 			}
+		}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+		private void decode() {
+			decode(decodeAt(paddr, value));
+		}
+
+		private void decode(DecodedInstruction decoded) {
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + (decoded.signedImm << 2);
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1070,7 +1365,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int value, paddr, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1085,6 +1380,178 @@ public final class Processor {
 		int mask;
 
 		boolean branch;
+
+		// number of instructions completed since ticks were last charged
+		int executed;
+	}
+
+	/**
+	 * A run of instructions within a single physical page, ending with a
+	 * branch and its delay slot, with an instruction that always causes an
+	 * exception, or at the end of the page.
+	 */
+	private class BasicBlock {
+		BasicBlock(int paddr) {
+			int end = (paddr / pageSize + 1) * pageSize;
+			DecodedInstruction[] decoded = new DecodedInstruction[(end - paddr) / 4];
+			int length = 0;
+			boolean delaySlot = false;
+
+			for (; paddr < end; paddr += 4) {
+				DecodedInstruction inst = decodeAt(paddr,
+						Lib.bytesToInt(mainMemory, paddr));
+				decoded[length++] = inst;
+
+				if (delaySlot || inst.operation == Mips.SYSCALL
+						|| inst.operation == Mips.UNIMPL
+						|| inst.operation == Mips.INVALID)
+					break;
+
+				delaySlot = Lib.test(Mips.BRANCH, inst.flags);
+			}
+
+			instructions = Arrays.copyOf(decoded, length);
+		}
+
+		final DecodedInstruction[] instructions;
+	}
+
+	/**
+	 * A hash table from virtual page number to TLB index, so that looking up a
+	 * TLB entry takes constant time however large the TLB is. Uses open
+	 * addressing with linear probing; since it never holds more keys than
+	 * there are TLB entries, it never needs to grow.
+	 */
+	private static class TLBIndex {
+		TLBIndex(int tlbSize) {
+			bits = 1;
+			while ((1 << bits) < tlbSize * 2)
+				bits++;
+
+			mask = (1 << bits) - 1;
+			keys = new int[1 << bits];
+			values = new int[1 << bits];
+
+			Arrays.fill(keys, -1);
+		}
+
+		int get(int vpn) {
+			for (int i = home(vpn); keys[i] != -1; i = (i + 1) & mask) {
+				if (keys[i] == vpn)
+					return values[i];
+			}
+
+			return -1;
+		}
+
+		void put(int vpn, int index) {
+			int i = home(vpn);
+			while (keys[i] != -1 && keys[i] != vpn)
+				i = (i + 1) & mask;
+
+			keys[i] = vpn;
+			values[i] = index;
+		}
+
+		void remove(int vpn) {
+			int i = home(vpn);
+			while (keys[i] != vpn) {
+				if (keys[i] == -1)
+					return;
+				i = (i + 1) & mask;
+			}
+
+			// shift later keys back into the hole, unless that would move a key
+			// in front of its home slot
+			for (int j = (i + 1) & mask; keys[j] != -1; j = (j + 1) & mask) {
+				if (((j - home(keys[j])) & mask) >= ((j - i) & mask)) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+
+			keys[i] = -1;
+		}
+
+		private int home(int vpn) {
+			return (vpn * 0x9E3779B9) >>> (32 - bits);
+		}
+
+		private int bits, mask;
+
+		private int[] keys, values;
+	}
+
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and not on the contents of any register.
+	 */
+	private static class DecodedInstruction {
+		DecodedInstruction(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			signedImm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get imm; branch targets always use the sign-extended value
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = signedImm & 0xFFFF;
+			else
+				imm = signedImm;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm, signedImm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
 	}
 
 	private static class Mips {
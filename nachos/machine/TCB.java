@@ -6,12 +6,13 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object, which is always a platform thread.
  * 
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -39,6 +40,8 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		maxThreads = Config.getInteger("TCB.maxThreads", 250);
 	}
 
 	/**
@@ -66,9 +69,10 @@ public final class TCB {
 
 		/*
 		 * Make sure there aren't too many running TCBs already. This limitation
-		 * exists in an effort to prevent wild thread usage.
+		 * exists in an effort to prevent wild thread usage. A limit of zero or
+		 * less means no limit.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(maxThreads <= 0 || runningThreads.size() < maxThreads);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -291,32 +295,28 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
 	 * needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		// park() may return spuriously, so recheck the flag
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
+	 * and unparking the Java thread bound to it. Used in the ping-pong process of
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -340,11 +340,21 @@ public final class TCB {
 		toBeDestroyed = thread;
 	}
 
+	/**
+	 * Return the maximum number of started, non-destroyed TCB's that can be in
+	 * existence, as set by <tt>TCB.maxThreads</tt>.
+	 * 
+	 * @return the thread limit, or zero or less if there is no limit.
+	 */
+	public static int getMaxThreads() {
+		return maxThreads;
+	}
+
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
 	 * existence.
 	 */
-	public static final int maxThreads = 250;
+	private static int maxThreads = 250;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -401,9 +411,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. Volatile, because the handoff between Java threads is done with
+	 * <tt>LockSupport</tt> rather than a monitor.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -0,0 +1,313 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * One end of a reliable connection between two ports. Data written to a
+ * connection is split into segments, which are numbered consecutively and
+ * kept in a sliding window until the other end acknowledges them. The other
+ * end acknowledges cumulatively, buffering segments that arrive out of order
+ * until the gap before them is filled.
+ *
+ * <p>
+ * A connection can be read and written as an <tt>OpenFile</tt>. Reads never
+ * wait for data to arrive, and writes wait only while the send window is
+ * full. All of a connection's state is protected by the transport's lock.
+ *
+ * @see nachos.network.Transport
+ */
+public class Connection extends OpenFile {
+	/**
+	 * Allocate a new connection. The connection is not yet established.
+	 *
+	 * @param transport the transport that the connection belongs to.
+	 * @param localPort the port of this end of the connection.
+	 * @param remoteLink the link address of the other end.
+	 * @param remotePort the port of the other end.
+	 */
+	Connection(Transport transport, int localPort, int remoteLink,
+			int remotePort) {
+		super(null, "connection");
+
+		this.transport = transport;
+		this.localPort = localPort;
+		this.remoteLink = remoteLink;
+		this.remotePort = remotePort;
+
+		established = new Condition2(transport.lock);
+		windowOpen = new Condition2(transport.lock);
+	}
+
+	/**
+	 * Copy up to <i>length</i> bytes of data that have arrived into
+	 * <i>buf</i>, without waiting for more.
+	 *
+	 * @return the number of bytes read, or -1 if the other end has closed the
+	 * connection and no more data is buffered.
+	 */
+	public int read(byte[] buf, int offset, int length) {
+		transport.lock.acquire();
+
+		int amount = 0;
+		while (amount < length && !received.isEmpty()) {
+			byte[] contents = received.getFirst();
+
+			int n = Math.min(length - amount, contents.length - receivedOffset);
+			System.arraycopy(contents, receivedOffset, buf, offset + amount, n);
+			amount += n;
+
+			receivedOffset += n;
+			if (receivedOffset == contents.length) {
+				received.removeFirst();
+				receivedOffset = 0;
+			}
+		}
+
+		if (amount == 0 && length > 0 && finReceived)
+			amount = -1;
+
+		transport.release();
+		return amount;
+	}
+
+	/**
+	 * Send <i>length</i> bytes from <i>buf</i>, waiting while the send window
+	 * is full. Returns once every segment has been sent once, not when the
+	 * other end has received them.
+	 *
+	 * @return the number of bytes sent, which is less than <i>length</i> if
+	 * the other end closed the connection, or -1 if it already had.
+	 */
+	public int write(byte[] buf, int offset, int length) {
+		transport.lock.acquire();
+
+		if (localClosed || finReceived) {
+			transport.release();
+			return -1;
+		}
+
+		int amount = 0;
+		while (amount < length) {
+			while (nextSeq - sendBase >= Transport.windowSize && !finReceived)
+				transport.sleep(windowOpen);
+
+			if (finReceived)
+				break;
+
+			int n = Math.min(length - amount, Segment.maxContentsLength);
+			byte[] contents = new byte[n];
+			System.arraycopy(buf, offset + amount, contents, 0, n);
+			amount += n;
+
+			if (sendBase == nextSeq)
+				lastProgress = Machine.timer().getTime();
+
+			window[nextSeq % Transport.windowSize] = contents;
+			send(0, nextSeq++, contents);
+		}
+
+		transport.release();
+		return amount;
+	}
+
+	/**
+	 * Close this end of the connection. Data that has been written is still
+	 * delivered, and the other end is then told that no more will follow.
+	 */
+	public void close() {
+		transport.lock.acquire();
+
+		if (!localClosed) {
+			localClosed = true;
+			received.clear();
+
+			if (sendBase == nextSeq)
+				sendFin();
+		}
+
+		transport.release();
+	}
+
+	/**
+	 * Request a connection from the other end, and wait until it accepts.
+	 */
+	void open() {
+		Lib.assertTrue(transport.lock.isHeldByCurrentThread());
+
+		state = stateSynSent;
+		lastProgress = Machine.timer().getTime();
+		send(Segment.flagSyn, 0, noContents);
+
+		while (state == stateSynSent)
+			transport.sleep(established);
+	}
+
+	/**
+	 * Accept a connection that the other end requested.
+	 */
+	void accept() {
+		Lib.assertTrue(transport.lock.isHeldByCurrentThread());
+
+		state = stateEstablished;
+		send(Segment.flagSyn | Segment.flagAck, 0, noContents);
+	}
+
+	/**
+	 * Handle a segment that arrived from the other end.
+	 *
+	 * @param segment the segment.
+	 */
+	void receive(Segment segment) {
+		Lib.assertTrue(transport.lock.isHeldByCurrentThread());
+
+		// any reply to our request means the other end accepted it
+		if (state == stateSynSent && (segment.flags != Segment.flagSyn)) {
+			state = stateEstablished;
+			established.wakeAll();
+		}
+
+		if ((segment.flags & Segment.flagSyn) != 0) {
+			// our acceptance was lost, so the request was sent again
+			if (segment.flags == Segment.flagSyn)
+				send(Segment.flagSyn | Segment.flagAck, 0, noContents);
+		}
+		else if (segment.flags == Segment.flagAck) {
+			receiveAck(segment.seq);
+		}
+		else {
+			receiveData(segment);
+		}
+
+		transport.checkClosed(this);
+	}
+
+	private void receiveAck(int ack) {
+		if (ack <= sendBase || ack > nextSeq)
+			return;
+
+		for (int seq = sendBase; seq < ack; seq++)
+			window[seq % Transport.windowSize] = null;
+
+		sendBase = ack;
+		lastProgress = Machine.timer().getTime();
+		windowOpen.wakeAll();
+
+		if (localClosed && finSeq == -1 && sendBase == nextSeq)
+			sendFin();
+	}
+
+	private void receiveData(Segment segment) {
+		int seq = segment.seq;
+
+		// leave room for the data that has not been read yet
+		int space = Transport.windowSize - received.size();
+
+		if (seq >= expectedSeq && seq < expectedSeq + space)
+			outOfOrder.put(seq, segment);
+
+		while (outOfOrder.containsKey(expectedSeq)) {
+			Segment next = outOfOrder.remove(expectedSeq++);
+
+			if ((next.flags & Segment.flagFin) != 0) {
+				finReceived = true;
+				windowOpen.wakeAll();
+			}
+			else if (!localClosed && next.contents.length > 0) {
+				received.add(next.contents);
+			}
+		}
+
+		send(Segment.flagAck, expectedSeq, noContents);
+	}
+
+	/**
+	 * Send again whatever the other end has not acknowledged, if it has made
+	 * no progress for a retransmission interval.
+	 *
+	 * @param time the current time.
+	 */
+	void retransmit(long time) {
+		Lib.assertTrue(transport.lock.isHeldByCurrentThread());
+
+		if (time - lastProgress < Transport.retransmitInterval)
+			return;
+
+		if (state == stateSynSent) {
+			send(Segment.flagSyn, 0, noContents);
+		}
+		else {
+			for (int seq = sendBase; seq < nextSeq; seq++) {
+				if (seq == finSeq)
+					send(Segment.flagFin, seq, noContents);
+				else
+					send(0, seq, window[seq % Transport.windowSize]);
+			}
+		}
+
+		lastProgress = time;
+	}
+
+	/**
+	 * Test whether both ends have closed the connection and every segment
+	 * has been acknowledged, so that the connection can be forgotten.
+	 */
+	boolean isFinished() {
+		return localClosed && finSeq != -1 && sendBase > finSeq && finReceived;
+	}
+
+	private void sendFin() {
+		finSeq = nextSeq++;
+		lastProgress = Machine.timer().getTime();
+		send(Segment.flagFin, finSeq, noContents);
+	}
+
+	private void send(int flags, int seq, byte[] contents) {
+		transport.send(this, flags, seq, contents);
+	}
+
+	/** The port of this end of the connection. */
+	final int localPort;
+
+	/** The link address of the other end of the connection. */
+	final int remoteLink;
+
+	/** The port of the other end of the connection. */
+	final int remotePort;
+
+	private Transport transport;
+
+	private int state = stateEstablished;
+
+	private static final int stateSynSent = 0, stateEstablished = 1;
+
+	private Condition2 established, windowOpen;
+
+	// the oldest unacknowledged segment, and the next segment to send
+	private int sendBase = 0, nextSeq = 0;
+
+	// the contents of each unacknowledged segment, indexed by seq
+	private byte[][] window = new byte[Transport.windowSize][];
+
+	// the time the other end last acknowledged something
+	private long lastProgress;
+
+	private int finSeq = -1;
+
+	private boolean localClosed = false, finReceived = false;
+
+	// the next segment to deliver in order
+	private int expectedSeq = 0;
+
+	private HashMap<Integer, Segment> outOfOrder = new HashMap<Integer, Segment>();
+
+	// the contents of delivered segments that have not been read
+	private LinkedList<byte[]> received = new LinkedList<byte[]>();
+
+	private int receivedOffset = 0;
+
+	private static final byte[] noContents = new byte[0];
+}
@@ -46,8 +46,43 @@ public class NetProcess extends VMProcess {
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 		switch (syscall) {
+		case syscallConnect:
+			return handleConnect(a0, a1);
+		case syscallAccept:
+			return handleAccept(a0);
+
 		default:
 			return super.handleSyscall(syscall, a0, a1, a2, a3);
 		}
 	}
+
+	/**
+	 * Handle the connect() system call.
+	 */
+	private int handleConnect(int host, int port) {
+		Connection connection = NetKernel.transport.connect(host, port);
+		if (connection == null)
+			return -1;
+
+		return addConnection(connection);
+	}
+
+	/**
+	 * Handle the accept() system call.
+	 */
+	private int handleAccept(int port) {
+		Connection connection = NetKernel.transport.accept(port);
+		if (connection == null)
+			return -1;
+
+		return addConnection(connection);
+	}
+
+	private int addConnection(Connection connection) {
+		int fd = addFileDescriptor(connection);
+		if (fd == -1)
+			connection.close();
+
+		return fd;
+	}
 }
@@ -3,32 +3,63 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.LinkedList;
+
 /**
- * A collection of message queues, one for each local port. A
- * <tt>PostOffice</tt> interacts directly with the network hardware. Because of
- * the network hardware, we are guaranteed that messages will never be
- * corrupted, but they might get lost.
+ * A collection of mailboxes, one for each local port. A <tt>PostOffice</tt>
+ * interacts directly with the network hardware. Because of the network
+ * hardware, we are guaranteed that messages will never be corrupted, but they
+ * might get lost.
  * 
  * <p>
  * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot be
- * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * from the network and to place them in the appropriate mailboxes. This cannot
+ * be done in the receive interrupt handler because the mailboxes are protected
+ * by a lock.
+ *
+ * <p>
+ * Each mailbox is a small ring. A message that arrives at a full mailbox is
+ * dropped and counted, just as if the network had lost it, so a port that
+ * nobody reads cannot use up memory. A thread can wait for mail on many ports
+ * at once with <tt>select()</tt>, and check a port without waiting with
+ * <tt>tryReceive()</tt>.
+ *
+ * <p>
+ * Outgoing messages are queued in a small ring for each source port, and the
+ * send interrupt handler passes them to the network hardware one at a time,
+ * taking turns between the ports that have messages waiting. A sender only
+ * waits when the ring for its port is full, so a port sending a lot of data
+ * cannot hold up messages sent from other ports.
  */
 public class PostOffice {
 	/**
-	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+	 * Allocate a new post office for this machine's network link.
+	 */
+	public PostOffice() {
+		this(Machine.networkLink());
+	}
+
+	/**
+	 * Allocate a new post office, using an array of mailboxes.
 	 * Register the interrupt handlers with the network hardware and start the
 	 * "postal worker" thread.
+	 *
+	 * @param link the network link to send and receive messages with.
 	 */
-	public PostOffice() {
+	public PostOffice(NetworkLink link) {
+		this.link = link;
+
 		messageReceived = new Semaphore(0);
-		messageSent = new Semaphore(0);
-		sendLock = new Lock();
 
-		queues = new SynchList[MailMessage.portLimit];
-		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+		mailLock = new Lock("mail");
+
+		mailboxes = new Mailbox[MailMessage.portLimit];
+		for (int i = 0; i < mailboxes.length; i++)
+			mailboxes[i] = new Mailbox();
+
+		outboxes = new Outbox[MailMessage.portLimit];
+		for (int i = 0; i < outboxes.length; i++)
+			outboxes[i] = new Outbox();
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -40,7 +71,7 @@ public class PostOffice {
 				sendInterrupt();
 			}
 		};
-		Machine.networkLink().setInterruptHandlers(receiveHandler, sendHandler);
+		link.setInterruptHandlers(receiveHandler, sendHandler);
 
 		KThread t = new KThread(new Runnable() {
 			public void run() {
@@ -59,11 +90,20 @@ public class PostOffice {
 	 * @return the message received.
 	 */
 	public MailMessage receive(int port) {
-		Lib.assertTrue(port >= 0 && port < queues.length);
+		Lib.assertTrue(port >= 0 && port < mailboxes.length);
 
 		Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-		MailMessage mail = (MailMessage) queues[port].removeFirst();
+		int[] ports = new int[] { port };
+
+		mailLock.acquire();
+
+		while (mailboxes[port].count == 0)
+			waitForMail(ports, -1);
+
+		MailMessage mail = mailboxes[port].remove();
+
+		mailLock.release();
 
 		if (Lib.test(dbgNet))
 			System.out.println("got mail on port " + port + ": " + mail);
@@ -71,6 +111,115 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Retrieve a message on the specified port, if there is one, without
+	 * waiting.
+	 * 
+	 * @param port the port to check for a message.
+	 * 
+	 * @return the message received, or <tt>null</tt> if there is none.
+	 */
+	public MailMessage tryReceive(int port) {
+		Lib.assertTrue(port >= 0 && port < mailboxes.length);
+
+		mailLock.acquire();
+
+		MailMessage mail = null;
+		if (mailboxes[port].count > 0)
+			mail = mailboxes[port].remove();
+
+		mailLock.release();
+
+		if (mail != null && Lib.test(dbgNet))
+			System.out.println("got mail on port " + port + ": " + mail);
+
+		return mail;
+	}
+
+	/**
+	 * Wait until a message is waiting on any of the specified ports, or until
+	 * the timeout elapses. The message is left in its mailbox, to be retrieved
+	 * with <tt>tryReceive()</tt> or <tt>receive()</tt>.
+	 * 
+	 * @param ports the ports on which to wait for a message.
+	 * @param timeout the most ticks to wait, or a negative number to wait as
+	 * long as it takes.
+	 * 
+	 * @return the first of the ports that has a message waiting, or -1 if the
+	 * timeout elapsed first.
+	 */
+	public int select(int[] ports, long timeout) {
+		for (int i = 0; i < ports.length; i++)
+			Lib.assertTrue(ports[i] >= 0 && ports[i] < mailboxes.length);
+
+		long deadline = Machine.timer().getTime() + timeout;
+
+		mailLock.acquire();
+
+		int port;
+		while ((port = findMail(ports)) == -1) {
+			if (timeout < 0) {
+				waitForMail(ports, -1);
+			}
+			else {
+				long remaining = deadline - Machine.timer().getTime();
+				if (remaining <= 0)
+					break;
+
+				waitForMail(ports, remaining);
+			}
+		}
+
+		mailLock.release();
+		return port;
+	}
+
+	/**
+	 * Return the number of messages dropped on the specified port because its
+	 * mailbox was full.
+	 * 
+	 * @param port the port.
+	 * @return the number of messages dropped.
+	 */
+	public int dropped(int port) {
+		Lib.assertTrue(port >= 0 && port < mailboxes.length);
+
+		mailLock.acquire();
+		int dropped = mailboxes[port].dropped;
+		mailLock.release();
+
+		return dropped;
+	}
+
+	private int findMail(int[] ports) {
+		for (int i = 0; i < ports.length; i++) {
+			if (mailboxes[ports[i]].count > 0)
+				return ports[i];
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Sleep until mail arrives on any of the specified ports, or until the
+	 * timeout elapses. Another thread may take the mail first, so the caller
+	 * must check again.
+	 */
+	private void waitForMail(int[] ports, long timeout) {
+		Condition2 mailArrived = new Condition2(mailLock);
+
+		for (int i = 0; i < ports.length; i++)
+			mailboxes[ports[i]].waiters.add(mailArrived);
+
+		if (timeout < 0)
+			mailArrived.sleep();
+		else
+			mailArrived.sleepFor(timeout);
+
+		for (int i = 0; i < ports.length; i++)
+			mailboxes[ports[i]].waiters.remove(mailArrived);
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -78,7 +227,7 @@ public class PostOffice {
 		while (true) {
 			messageReceived.P();
 
-			Packet p = Machine.networkLink().receive();
+			Packet p = link.receive();
 
 			MailMessage mail;
 
@@ -93,8 +242,24 @@ public class PostOffice {
 				System.out.println("delivering mail to port " + mail.dstPort
 						+ ": " + mail);
 
-			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			mailLock.acquire();
+
+			// add the message to the mailbox and wake the threads waiting on it
+			Mailbox mailbox = mailboxes[mail.dstPort];
+			if (mailbox.count == mailboxLength) {
+				mailbox.dropped++;
+
+				Lib.debug(dbgNet, "mailbox " + mail.dstPort
+						+ " is full, dropping mail");
+			}
+			else {
+				mailbox.add(mail);
+
+				for (Condition2 mailArrived : mailbox.waiters)
+					mailArrived.wake();
+			}
+
+			mailLock.release();
 		}
 	}
 
@@ -107,18 +272,61 @@ public class PostOffice {
 	}
 
 	/**
-	 * Send a message to a mailbox on a remote machine.
+	 * Send a message to a mailbox on a remote machine. The message is queued
+	 * to be sent, and this method only waits if too many messages from the
+	 * same port are queued already.
 	 */
 	public void send(MailMessage mail) {
 		if (Lib.test(dbgNet))
 			System.out.println("sending mail: " + mail);
 
-		sendLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+
+		Outbox outbox = outboxes[mail.srcPort];
+		while (outbox.count == outboxLength) {
+			outbox.waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
 
-		Machine.networkLink().send(mail.packet);
-		messageSent.P();
+		outbox.ring[(outbox.first + outbox.count++) % outboxLength] = mail;
+		if (outbox.count == 1)
+			readyPorts.add(mail.srcPort);
 
-		sendLock.release();
+		if (!sending)
+			sendNext();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Pass the next queued message to the network link, taking it from the
+	 * port that has waited longest since it last sent one. Must be called with
+	 * interrupts disabled.
+	 */
+	private void sendNext() {
+		if (readyPorts.isEmpty()) {
+			sending = false;
+			return;
+		}
+
+		int port = readyPorts.removeFirst();
+		Outbox outbox = outboxes[port];
+
+		MailMessage mail = outbox.ring[outbox.first];
+		outbox.ring[outbox.first] = null;
+		outbox.first = (outbox.first + 1) % outboxLength;
+		outbox.count--;
+
+		// go to the back of the line if there is more to send
+		if (outbox.count > 0)
+			readyPorts.add(port);
+
+		KThread thread = outbox.waitQueue.nextThread();
+		if (thread != null)
+			thread.ready();
+
+		sending = true;
+		link.send(mail.packet);
 	}
 
 	/**
@@ -127,16 +335,71 @@ public class PostOffice {
 	 * dropped.
 	 */
 	private void sendInterrupt() {
-		messageSent.V();
+		sendNext();
 	}
 
-	private SynchList[] queues;
+	/**
+	 * The messages that arrived on one port but have not been received, and
+	 * the threads waiting for more.
+	 */
+	private static class Mailbox {
+		void add(MailMessage mail) {
+			ring[(first + count++) % mailboxLength] = mail;
+		}
+
+		MailMessage remove() {
+			MailMessage mail = ring[first];
+			ring[first] = null;
+			first = (first + 1) % mailboxLength;
+			count--;
+
+			return mail;
+		}
+
+		MailMessage[] ring = new MailMessage[mailboxLength];
+
+		int first = 0, count = 0;
+
+		// messages that arrived while the mailbox was full
+		int dropped = 0;
+
+		// one condition for each thread waiting, possibly on other ports too
+		LinkedList<Condition2> waiters = new LinkedList<Condition2>();
+	}
+
+	/**
+	 * The messages from one port that are waiting to be sent, and the threads
+	 * waiting for room to queue more.
+	 */
+	private static class Outbox {
+		MailMessage[] ring = new MailMessage[outboxLength];
+
+		int first = 0, count = 0;
+
+		ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	}
+
+	/** The network link this post office uses. */
+	final NetworkLink link;
+
+	private Lock mailLock;
+
+	private Mailbox[] mailboxes;
 
 	private Semaphore messageReceived; // V'd when a message can be dequeued
 
-	private Semaphore messageSent; // V'd when a message can be queued
+	private Outbox[] outboxes;
+
+	// ports with messages waiting to be sent, in the order they are served
+	private LinkedList<Integer> readyPorts = new LinkedList<Integer>();
+
+	private boolean sending = false; // true while the link is sending a packet
+
+	/** The most messages that can wait in one port's mailbox. */
+	private static final int mailboxLength = 16;
 
-	private Lock sendLock;
+	/** The most messages that can be queued for sending from one port. */
+	private static final int outboxLength = 16;
 
 	private static final char dbgNet = 'n';
 }
@@ -0,0 +1,129 @@
+package nachos.network;
+
+import nachos.machine.*;
+
+/**
+ * A transport segment. Includes a packet header, a mail header, a segment
+ * header, and the actual payload.
+ *
+ * @see nachos.network.MailMessage
+ * @see nachos.network.Transport
+ */
+public class Segment {
+	/**
+	 * Allocate a new segment to be sent, using the specified parameters.
+	 *
+	 * @param dstLink the destination link address.
+	 * @param dstPort the destination port.
+	 * @param srcLink the source link address.
+	 * @param srcPort the source port.
+	 * @param flags the segment's flags.
+	 * @param seq the sequence number of the segment, or the acknowledged
+	 * sequence number if the segment is an acknowledgement.
+	 * @param contents the contents of the segment.
+	 */
+	public Segment(int dstLink, int dstPort, int srcLink, int srcPort,
+			int flags, int seq, byte[] contents)
+			throws MalformedPacketException {
+		// make sure the parameters are valid
+		if ((flags & ~(flagSyn | flagAck | flagFin)) != 0
+				|| contents.length > maxContentsLength)
+			throw new MalformedPacketException();
+
+		this.flags = flags;
+		this.seq = seq;
+		this.contents = contents;
+
+		byte[] mailContents = new byte[headerLength + contents.length];
+
+		mailContents[0] = (byte) flags;
+		Lib.bytesFromInt(mailContents, 1, seq);
+
+		System.arraycopy(contents, 0, mailContents, headerLength,
+				contents.length);
+
+		mail = new MailMessage(dstLink, dstPort, srcLink, srcPort,
+				mailContents);
+	}
+
+	/**
+	 * Allocate a new segment using the specified mail message from the
+	 * network.
+	 *
+	 * @param mail the mail message containing the segment.
+	 */
+	public Segment(MailMessage mail) throws MalformedPacketException {
+		this.mail = mail;
+
+		// make sure we have a valid header
+		if (mail.contents.length < headerLength
+				|| (mail.contents[0] & ~(flagSyn | flagAck | flagFin)) != 0)
+			throw new MalformedPacketException();
+
+		flags = mail.contents[0];
+		seq = Lib.bytesToInt(mail.contents, 1);
+
+		contents = new byte[mail.contents.length - headerLength];
+		System.arraycopy(mail.contents, headerLength, contents, 0,
+				contents.length);
+	}
+
+	/**
+	 * Return a string representation of the segment headers.
+	 */
+	public String toString() {
+		return mail + ", flags " + flags + ", seq " + seq;
+	}
+
+	/** This segment, as a mail message that can be sent by a post office. */
+	public MailMessage mail;
+
+	/** The flags of this segment. */
+	public int flags;
+
+	/**
+	 * The sequence number of this segment. An acknowledgement carries the
+	 * sequence number the receiver expects next instead.
+	 */
+	public int seq;
+
+	/** The contents of this segment, excluding the segment header. */
+	public byte[] contents;
+
+	/** Requests a connection. Together with <tt>flagAck</tt>, accepts one. */
+	public static final int flagSyn = 0x01;
+
+	/** Acknowledges every segment before the one numbered <tt>seq</tt>. */
+	public static final int flagAck = 0x02;
+
+	/** Marks the end of the data sent on a connection. */
+	public static final int flagFin = 0x04;
+
+	/**
+	 * The number of bytes in a segment header. The header is formatted as
+	 * follows:
+	 *
+	 * <table>
+	 * <tr>
+	 * <td>offset</td>
+	 * <td>size</td>
+	 * <td>value</td>
+	 * </tr>
+	 * <tr>
+	 * <td>0</td>
+	 * <td>1</td>
+	 * <td>flags</td>
+	 * </tr>
+	 * <tr>
+	 * <td>1</td>
+	 * <td>4</td>
+	 * <td>sequence number</td>
+	 * </tr>
+	 * </table>
+	 */
+	public static final int headerLength = 5;
+
+	/** Maximum payload (real data) that can be included in a single segment. */
+	public static final int maxContentsLength = MailMessage.maxContentsLength
+			- headerLength;
+}
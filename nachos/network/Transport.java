@@ -0,0 +1,334 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A connection-oriented transport on top of a <tt>PostOffice</tt>. The
+ * transport delivers a stream of bytes reliably and in order, even though
+ * the network may lose packets, by numbering segments, acknowledging them
+ * cumulatively, and sending again whatever is not acknowledged in time.
+ *
+ * <p>
+ * A connection is identified by its local port and the link address and
+ * port of the other end, so a port can carry many connections. A port is
+ * bound when it is first used, and from then on a receiver thread waits for
+ * segments on it and hands them to their connections. A single
+ * retransmission thread, woken by the alarm, resends segments for every
+ * connection.
+ *
+ * <p>
+ * Segments are never sent while the transport's lock is held, since sending
+ * may wait for room in the post office. Instead they are queued, and sent by
+ * whichever thread releases the lock next.
+ *
+ * <p>
+ * Connections are set up with a 2-way handshake. <tt>connect()</tt> sends a
+ * connection request again and again until the other end accepts it;
+ * <tt>accept()</tt> answers one request that is already waiting, without
+ * waiting for one to arrive.
+ */
+public class Transport {
+	/**
+	 * Allocate a new transport, and start its retransmission thread.
+	 *
+	 * @param postOffice the post office to send and receive segments with.
+	 */
+	public Transport(PostOffice postOffice) {
+		this.postOffice = postOffice;
+
+		localLink = postOffice.link.getLinkAddress();
+
+		KThread t = new KThread(new Runnable() {
+			public void run() {
+				retransmitLoop();
+			}
+		});
+
+		t.setName("retransmitter").fork();
+	}
+
+	/**
+	 * Open a connection to the specified port on the specified host, waiting
+	 * until the host accepts it.
+	 *
+	 * @param host the link address of the remote host.
+	 * @param port the remote port.
+	 * @return the connection, or <tt>null</tt> if the address is invalid or
+	 * no local port is free.
+	 */
+	public Connection connect(int host, int port) {
+		if (host < 0 || host >= Packet.linkAddressLimit || port < 0
+				|| port >= MailMessage.portLimit)
+			return null;
+
+		lock.acquire();
+
+		int localPort = choosePort(host, port);
+		if (localPort == -1) {
+			release();
+			return null;
+		}
+
+		Connection connection = new Connection(this, localPort, host, port);
+		ports[localPort].connections.put(remoteKey(host, port), connection);
+
+		Lib.debug(dbgNet, "connecting port " + localPort + " to (" + host
+				+ ":" + port + ")");
+
+		connection.open();
+
+		release();
+		return connection;
+	}
+
+	/**
+	 * Accept a connection request waiting on the specified port, if there is
+	 * one.
+	 *
+	 * @param port the local port.
+	 * @return the connection, or <tt>null</tt> if no request is waiting or
+	 * the port is invalid.
+	 */
+	public Connection accept(int port) {
+		if (port < 0 || port >= MailMessage.portLimit)
+			return null;
+
+		lock.acquire();
+
+		Port p = bind(port);
+		p.accepting = true;
+
+		Connection connection = null;
+		if (!p.requests.isEmpty()) {
+			int key = p.requests.removeFirst();
+
+			connection = new Connection(this, port, key / MailMessage.portLimit,
+					key % MailMessage.portLimit);
+			p.connections.put(key, connection);
+
+			Lib.debug(dbgNet, "accepting (" + connection.remoteLink + ":"
+					+ connection.remotePort + ") on port " + port);
+
+			connection.accept();
+		}
+
+		release();
+		return connection;
+	}
+
+	/**
+	 * Queue a segment to be sent for the specified connection once the lock
+	 * is released.
+	 */
+	void send(Connection connection, int flags, int seq, byte[] contents) {
+		send(connection.remoteLink, connection.remotePort, connection.localPort,
+				flags, seq, contents);
+	}
+
+	private void send(int remoteLink, int remotePort, int localPort,
+			int flags, int seq, byte[] contents) {
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+
+		try {
+			outgoing.add(new Segment(remoteLink, remotePort, localLink,
+					localPort, flags, seq, contents));
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+		}
+	}
+
+	/**
+	 * Release the lock, and then send the segments queued while it was held.
+	 */
+	void release() {
+		if (outgoing.isEmpty()) {
+			lock.release();
+			return;
+		}
+
+		LinkedList<Segment> segments = outgoing;
+		outgoing = new LinkedList<Segment>();
+
+		lock.release();
+
+		for (Segment segment : segments)
+			postOffice.send(segment.mail);
+	}
+
+	/**
+	 * Sleep on the specified condition, unless segments are waiting to be
+	 * sent; in that case, send them instead, with the lock released. Either
+	 * way the caller must test its condition again.
+	 *
+	 * @param condition a condition of the transport's lock.
+	 */
+	void sleep(Condition2 condition) {
+		if (outgoing.isEmpty()) {
+			condition.sleep();
+		}
+		else {
+			release();
+			lock.acquire();
+		}
+	}
+
+	/**
+	 * Forget the specified connection if it has finished.
+	 */
+	void checkClosed(Connection connection) {
+		if (connection.isFinished()) {
+			Lib.debug(dbgNet, "closed port " + connection.localPort + " to ("
+					+ connection.remoteLink + ":" + connection.remotePort + ")");
+
+			ports[connection.localPort].connections.remove(remoteKey(
+					connection.remoteLink, connection.remotePort));
+		}
+	}
+
+	/**
+	 * Choose a local port for a new connection to the specified remote port.
+	 * Ports that are already bound are reused when possible, so that few
+	 * receiver threads are needed, but never ports that accept connections.
+	 */
+	private int choosePort(int host, int port) {
+		int key = remoteKey(host, port);
+
+		for (int i = MailMessage.portLimit - 1; i >= 0; i--) {
+			Port p = ports[i];
+			if (p != null && !p.accepting && !p.connections.containsKey(key))
+				return i;
+		}
+
+		for (int i = MailMessage.portLimit - 1; i >= 0; i--) {
+			if (ports[i] == null) {
+				bind(i);
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Bind the specified port, if it is not bound already, starting a thread
+	 * to receive segments on it.
+	 */
+	private Port bind(final int port) {
+		if (ports[port] == null) {
+			ports[port] = new Port();
+
+			KThread t = new KThread(new Runnable() {
+				public void run() {
+					receiveLoop(port);
+				}
+			});
+
+			t.setName("port " + port).fork();
+		}
+
+		return ports[port];
+	}
+
+	/**
+	 * Wait for segments to arrive on the specified port, and hand each one to
+	 * its connection.
+	 */
+	private void receiveLoop(int port) {
+		while (true) {
+			MailMessage mail = postOffice.receive(port);
+
+			Segment segment;
+
+			try {
+				segment = new Segment(mail);
+			}
+			catch (MalformedPacketException e) {
+				continue;
+			}
+
+			lock.acquire();
+			deliver(port, segment);
+			release();
+		}
+	}
+
+	private void deliver(int port, Segment segment) {
+		Port p = ports[port];
+		int key = remoteKey(segment.mail.packet.srcLink, segment.mail.srcPort);
+
+		Connection connection = p.connections.get(key);
+		if (connection != null) {
+			connection.receive(segment);
+		}
+		else if (segment.flags == Segment.flagSyn) {
+			if (!p.requests.contains(key))
+				p.requests.add(key);
+		}
+		else if (segment.flags == Segment.flagFin) {
+			// our acknowledgement of a connection's end was lost
+			send(segment.mail.packet.srcLink, segment.mail.srcPort, port,
+					Segment.flagAck, segment.seq + 1, new byte[0]);
+		}
+	}
+
+	private void retransmitLoop() {
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(retransmitInterval);
+
+			lock.acquire();
+
+			long time = Machine.timer().getTime();
+			for (Port p : ports) {
+				if (p == null)
+					continue;
+
+				for (Connection connection : p.connections.values())
+					connection.retransmit(time);
+			}
+
+			release();
+		}
+	}
+
+	private static int remoteKey(int link, int port) {
+		return link * MailMessage.portLimit + port;
+	}
+
+	/**
+	 * The connections and connection requests on a bound port.
+	 */
+	private static class Port {
+		// connections, by the link address and port of their other end
+		HashMap<Integer, Connection> connections = new HashMap<Integer, Connection>();
+
+		// connection requests that have not been accepted yet
+		LinkedList<Integer> requests = new LinkedList<Integer>();
+
+		boolean accepting = false;
+	}
+
+	/** Protects the state of the transport and all of its connections. */
+	Lock lock = new Lock("transport");
+
+	private PostOffice postOffice;
+
+	private int localLink;
+
+	private Port[] ports = new Port[MailMessage.portLimit];
+
+	// segments to send once the lock is released
+	private LinkedList<Segment> outgoing = new LinkedList<Segment>();
+
+	/** The most segments a connection sends before it needs an ACK. */
+	static final int windowSize = 16;
+
+	/** How long a connection waits for progress before sending again. */
+	static final long retransmitInterval = 20000;
+
+	private static final char dbgNet = 'n';
+}
@@ -146,8 +146,18 @@ public abstract class Privilege {
 		 * @param when the number of ticks until the interrupt should occur.
 		 * @param type a name for the type of interrupt being scheduled.
 		 * @param handler the interrupt handler to call.
+		 * @return an identifier for the scheduled interrupt, which can be
+		 * passed to <tt>cancel()</tt>.
 		 */
-		public void schedule(long when, String type, Runnable handler);
+		public long schedule(long when, String type, Runnable handler);
+
+		/**
+		 * Cancel an interrupt that has been scheduled but has not yet occurred.
+		 * 
+		 * @param id the identifier returned by <tt>schedule()</tt>.
+		 * @return <tt>true</tt> if the interrupt was still pending.
+		 */
+		public boolean cancel(long id);
 
 		/**
 		 * Advance the simulated time.
@@ -157,6 +167,29 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once. Same as calling
+		 * <tt>tick(inKernelMode)</tt> <i>count</i> times, except that pending
+		 * interrupts are only checked once, after all the ticks have been
+		 * charged.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the ticks were spent running
+		 * kernel code, <tt>false</tt> if they were spent running MIPS user
+		 * code.
+		 * @param count the number of ticks to charge.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the number of ticks that can pass before the earliest pending
+		 * interrupt is due, or <tt>Long.MAX_VALUE</tt> if there is none. Time
+		 * can be advanced by up to this many ticks in one step without
+		 * delaying any interrupt.
+		 * 
+		 * @return the number of ticks until the next interrupt.
+		 */
+		public long ticksUntilNextInterrupt();
 	}
 
 	/**
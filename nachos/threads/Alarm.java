@@ -1,6 +1,5 @@
 package nachos.threads;
 
-import java.util.*;
 import nachos.machine.*;
 
 /**
@@ -19,7 +18,12 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
-		waitingPq = new PriorityQueue<>((a,b) -> ((int)(a.wakeUpTime - b.wakeUpTime)));
+		for (int level = 0; level < numLevels; level++) {
+			for (int i = 0; i < slotsPerLevel; i++)
+				wheel[level][i] = new WaitingThread(0, null);
+		}
+		currentTick = Machine.timer().getTime() / Stats.TimerTicks;
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -36,12 +40,17 @@ public class Alarm {
 	public void timerInterrupt() {
 		boolean disableInterruptResult = Machine.interrupt().disable();
 		long curTime = Machine.timer().getTime();
-		while (!waitingPq.isEmpty() && waitingPq.peek().getWakeUpTime() <= curTime) {
-			KThread unblockedThread = waitingPq.poll().getThread();
-			if (unblockedThread.isBlocked()) {
-				unblockedThread.ready();
-			}
+		long tick = curTime / Stats.TimerTicks;
+
+		// every slot the wheel has passed holds only expired timers
+		while (currentTick < tick) {
+			expire(wheel[0][(int) (currentTick & slotMask)], curTime);
+			currentTick++;
+			cascade();
 		}
+		expire(wheel[0][(int) (currentTick & slotMask)], curTime);
+
+		ThreadedKernel.scheduler.timeSliceExpired(KThread.currentThread());
 		Machine.interrupt().restore(disableInterruptResult);
 		KThread.yield();		// forcing a context switch
 	}
@@ -59,17 +68,17 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		// TODO: use KThread.sleep() to block, use KThread.ready() to unblock  it
-		// TODO: disable interrupt to deal with mutual exclusion
-		// TODO: implement your own waiting queue
 		long wakeTime = Machine.timer().getTime() + x;
 		boolean disableInterruptResult = Machine.interrupt().disable();
 		if (x <= 0) {
 			Machine.interrupt().restore(disableInterruptResult);
 			return;
 		}
-		waitingPq.offer(new WaitingThread(wakeTime, KThread.currentThread()));
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(thread.alarmTimer == null);
+
+		thread.alarmTimer = new WaitingThread(wakeTime, thread);
+		insert(thread.alarmTimer);
 		KThread.sleep();											// block the current thread
 		Machine.interrupt().restore(disableInterruptResult);		// restore the interrupt
 	}
@@ -85,34 +94,130 @@ public class Alarm {
 	 */
 	public boolean cancel(KThread thread) {
 		boolean disableInterruptResult = Machine.interrupt().disable();
-		for (WaitingThread waitingThread : waitingPq) {
-			if (waitingThread.getThread() == thread) {
-				KThread curThread = waitingThread.getThread();
-				waitingPq.remove(waitingThread);
-				curThread.ready();
-				Machine.interrupt().restore(disableInterruptResult);
-				return true;
-			}
+		WaitingThread waitingThread = thread.alarmTimer;
+		if (waitingThread == null) {
+			Machine.interrupt().restore(disableInterruptResult);
+			return false;
 		}
+		waitingThread.unlink();
+		thread.alarmTimer = null;
+		thread.ready();
 		Machine.interrupt().restore(disableInterruptResult);
-		return false;
+		return true;
+	}
+
+	/**
+	 * Put a timer in the wheel. A timer due within <tt>slotsPerLevel</tt>
+	 * slots of the current one goes in the slot for its own tick on the
+	 * lowest level; a timer due later goes in a coarser slot on a higher
+	 * level, and moves down when the wheel reaches that slot.
+	 */
+	private void insert(WaitingThread waitingThread) {
+		long tick = waitingThread.wakeUpTime / Stats.TimerTicks;
+		long delta = tick - currentTick;
+
+		int level = 0;
+		while (level < numLevels - 1 && delta >= 1L << (levelBits * (level + 1)))
+			level++;
+
+		long slot = (tick >> (levelBits * level)) & slotMask;
+		waitingThread.linkBefore(wheel[level][(int) slot]);
+	}
+
+	/**
+	 * Wake every thread in the specified slot whose time has come.
+	 */
+	private void expire(WaitingThread head, long curTime) {
+		WaitingThread waitingThread = head.next;
+		while (waitingThread != head) {
+			WaitingThread next = waitingThread.next;
+			if (waitingThread.wakeUpTime <= curTime) {
+				waitingThread.unlink();
+				KThread unblockedThread = waitingThread.thread;
+				unblockedThread.alarmTimer = null;
+				if (unblockedThread.isBlocked()) {
+					unblockedThread.ready();
+				}
+			}
+			waitingThread = next;
+		}
 	}
 
+	/**
+	 * Having just moved to a new slot on the lowest level, move down the
+	 * timers of each higher level whose slot also changed.
+	 */
+	private void cascade() {
+		for (int level = 1; level < numLevels; level++) {
+			if ((currentTick & ((1L << (levelBits * level)) - 1)) != 0)
+				break;
+
+			long slot = (currentTick >> (levelBits * level)) & slotMask;
+			WaitingThread head = wheel[level][(int) slot];
+			if (head.next == head)
+				continue;
+
+			// detach the list first, since a timer may land in the same slot
+			WaitingThread waitingThread = head.next;
+			head.prev.next = null;
+			head.next = head.prev = head;
 
+			while (waitingThread != null) {
+				WaitingThread next = waitingThread.next;
+				insert(waitingThread);
+				waitingThread = next;
+			}
+		}
+	}
+
+	/**
+	 * A timer, linked into one of the wheel's slots. Each slot is a circular
+	 * doubly-linked list with a dummy head, so that a timer can be unlinked
+	 * without knowing which slot it is in.
+	 */
 	public class WaitingThread {
 		public WaitingThread(long wakeUpTime, KThread thread) {
 			this.wakeUpTime = wakeUpTime;
 			this.thread = thread;
+			prev = next = this;
 		}
 
 		public KThread getThread() { return this.thread; }
 		public long getWakeUpTime() { return this.wakeUpTime; }
 
+		private void linkBefore(WaitingThread head) {
+			prev = head.prev;
+			next = head;
+			head.prev.next = this;
+			head.prev = this;
+		}
+
+		private void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = next = this;
+		}
+
 		private long wakeUpTime;
 		private KThread thread;
+		private WaitingThread prev, next;
 	}
 
-	private PriorityQueue<WaitingThread> waitingPq;
+	private static final int levelBits = 6;
+	private static final int slotsPerLevel = 1 << levelBits;
+	private static final long slotMask = slotsPerLevel - 1;
+	private static final int numLevels = 4;
+
+	/**
+	 * The timing wheel, a level of <tt>slotsPerLevel</tt> slots for each
+	 * power of <tt>slotsPerLevel</tt> timer ticks. A slot on level <i>k</i>
+	 * spans <tt>slotsPerLevel</tt><sup><i>k</i></sup> periods of
+	 * <tt>Stats.TimerTicks</tt> ticks.
+	 */
+	private WaitingThread[][] wheel = new WaitingThread[numLevels][slotsPerLevel];
+
+	// the period of Stats.TimerTicks ticks the wheel has advanced to
+	private long currentTick;
 
 	/**
 	 * Self Test for Alarm class
@@ -3,8 +3,8 @@ package nachos.threads;
 import nachos.machine.*;
 
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 
 /**
  * An implementation of condition variables that disables interrupt()s for
@@ -37,7 +37,7 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		// add this thread into waiting queue of this CV
-		waitQueue.offer(KThread.currentThread());
+		waitQueue.add(KThread.currentThread());
 
 		// disable interrupt to make atomic operation
 		boolean intStatus = Machine.interrupt().disable();
@@ -55,7 +55,7 @@ public class Condition2 {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		while ((threadTobeWake = waitQueue.poll()) != null) {
+		while ((threadTobeWake = pollWaiter()) != null) {
 			if (threadTobeWake.isBlocked()) {
 				if (!ThreadedKernel.alarm.cancel(threadTobeWake)) {
 					threadTobeWake.ready();
@@ -75,7 +75,7 @@ public class Condition2 {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		while ((threadTobeWake = waitQueue.poll()) != null) {
+		while ((threadTobeWake = pollWaiter()) != null) {
 			if (threadTobeWake.isBlocked() && !ThreadedKernel.alarm.cancel(threadTobeWake)) {
 				threadTobeWake.ready();
 			}
@@ -93,7 +93,7 @@ public class Condition2 {
 	 */
 	public void sleepFor(long timeout) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-		waitQueue.offer(KThread.currentThread());
+		waitQueue.add(KThread.currentThread());
 
 		boolean intStatus = Machine.interrupt().disable();
 		conditionLock.release();
@@ -104,8 +104,23 @@ public class Condition2 {
 		conditionLock.acquire();
 	}
 
+	/**
+	 * Remove and return the thread that has waited longest, or <tt>null</tt>
+	 * if no thread is waiting.
+	 */
+	private KThread pollWaiter() {
+		Iterator<KThread> i = waitQueue.iterator();
+		if (!i.hasNext())
+			return null;
+
+		KThread thread = i.next();
+		i.remove();
+		return thread;
+	}
+
 	private Lock conditionLock;
-	private Queue<KThread> waitQueue = new LinkedList<>();
+	// in arrival order; a set so a timed-out thread can remove itself in O(1)
+	private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<>();
 	private KThread threadTobeWake;
 
 	/** testing
@@ -313,14 +313,22 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 *
+	 * <p>
+	 * Since only an interrupt can make another thread ready, the idle thread
+	 * yields with interrupts disabled, and if it is still the only thread
+	 * that can run, skips the simulated time straight to the next interrupt.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					Machine.interrupt().disable();
 					KThread.yield();
+					Machine.interrupt().idle();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -562,6 +570,14 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * The alarm timer this thread is sleeping on, if any, so that the timer
+	 * can be cancelled without searching for it.
+	 * 
+	 * @see nachos.threads.Alarm#cancel
+	 */
+	Alarm.WaitingThread alarmTimer = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
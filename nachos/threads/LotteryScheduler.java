@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -41,7 +42,253 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
 	}
+
+	/**
+	 * Return the minimum number of tickets that a thread can have.
+	 * 
+	 * @return <tt>priorityMinimum</tt>.
+	 */
+	protected int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the maximum number of tickets that a thread can have.
+	 * 
+	 * @return <tt>priorityMaximum</tt>.
+	 */
+	protected int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * Each waiting thread occupies a slot in a Fenwick tree over the slots'
+	 * ticket counts, so that the holder of a ticket can be found, and a
+	 * thread's ticket count changed, in O(log n) time.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+
+			for (int i = initialCapacity - 1; i >= 0; i--)
+				freeSlots[numFree++] = i;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				// nobody is waiting, so the resource is no longer held
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads. Since the outcome is
+		 * random, <tt>nextThread()</tt> holds its own lottery and may not
+		 * choose the same thread.
+		 * 
+		 * @return the thread holding the winning ticket.
+		 */
+		protected ThreadState pickNextThread() {
+			if (numWaiting == 0)
+				return null;
+
+			long total = prefixSum(slots.length);
+			long ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+			return slots[findTicket(ticket)];
+		}
+
+		/**
+		 * Return the total number of tickets held by the waiting threads,
+		 * which is what the queue donates to its owner.
+		 * 
+		 * @return the donated number of tickets.
+		 */
+		protected int getDonation() {
+			return (int) Math.min(prefixSum(slots.length), priorityMaximum);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + "("
+							+ slots[i].getEffectivePriority() + ") ");
+			}
+			System.out.println();
+		}
+
+		void update(ThreadState state, int oldPriority) {
+			addTickets(state.queueIndex, (long) state.getEffectivePriority()
+					- oldPriority);
+
+			if (owner != null)
+				owner.updateEffectivePriority();
+		}
+
+		void add(ThreadState state) {
+			if (numFree == 0)
+				grow();
+
+			int slot = freeSlots[--numFree];
+
+			slots[slot] = state;
+			state.queueIndex = slot;
+			numWaiting++;
+			addTickets(slot, state.getEffectivePriority());
+
+			if (owner != null)
+				owner.updateEffectivePriority();
+		}
+
+		void remove(ThreadState state) {
+			int slot = state.queueIndex;
+			Lib.assertTrue(slots[slot] == state);
+
+			addTickets(slot, -state.getEffectivePriority());
+			slots[slot] = null;
+			state.queueIndex = -1;
+			numWaiting--;
+			freeSlots[numFree++] = slot;
+
+			if (owner != null)
+				owner.updateEffectivePriority();
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the Fenwick tree.
+		 */
+		private void grow() {
+			int oldLength = slots.length;
+
+			slots = Arrays.copyOf(slots, oldLength * 2);
+			tree = new long[slots.length + 1];
+
+			freeSlots = new int[slots.length];
+			for (int i = slots.length - 1; i >= oldLength; i--)
+				freeSlots[numFree++] = i;
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					addTickets(i, slots[i].getEffectivePriority());
+			}
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to the specified slot.
+		 */
+		private void addTickets(int slot, long delta) {
+			for (int i = slot + 1; i < tree.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Return the total number of tickets in the first <i>n</i> slots.
+		 */
+		private long prefixSum(int n) {
+			long sum = 0;
+			for (int i = n; i > 0; i -= i & -i)
+				sum += tree[i];
+
+			return sum;
+		}
+
+		/**
+		 * Return the slot holding the specified ticket, numbering the tickets
+		 * consecutively from slot 0 on.
+		 */
+		private int findTicket(long ticket) {
+			int slot = 0;
+
+			int step = Integer.highestOneBit(slots.length);
+			for (; step > 0; step >>= 1) {
+				if (slot + step < tree.length && tree[slot + step] <= ticket) {
+					slot += step;
+					ticket -= tree[slot];
+				}
+			}
+
+			return slot;
+		}
+
+		private ThreadState[] slots = new ThreadState[initialCapacity];
+
+		// tree[i] holds the tickets of slots (i - (i & -i)) through i - 1
+		private long[] tree = new long[initialCapacity + 1];
+
+		private int numWaiting = 0;
+
+		// unoccupied slots, as a stack
+		private int[] freeSlots = new int[initialCapacity];
+
+		private int numFree = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. A thread's
+	 * effective ticket count is its own tickets plus the tickets of every
+	 * thread waiting on a queue it owns.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		protected void updateEffectivePriority() {
+			int oldPriority = effectivePriority;
+
+			long tickets = priority;
+			for (PriorityQueue queue : ownedQueues)
+				tickets += queue.getDonation();
+
+			effectivePriority = (int) Math.min(tickets, priorityMaximum);
+
+			if (effectivePriority != oldPriority && waitQueue != null)
+				waitQueue.update(this, oldPriority);
+		}
+	}
+
+	private static final int initialCapacity = 16;
 }
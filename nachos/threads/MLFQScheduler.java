@@ -0,0 +1,225 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A multilevel feedback queue scheduler. Each thread is on one of several
+ * levels, and the next thread to receive access is the one that has waited
+ * longest at the highest nonempty level. Threads start at the highest level.
+ * A thread that is preempted by the timer often enough to use up the
+ * allotment of its level (<tt>MLFQScheduler.quanta</tt>, in time slices, one
+ * entry per level) moves down a level, so threads that mostly wait, like
+ * interactive ones, stay ahead of threads that mostly compute.
+ * 
+ * <p>
+ * To keep threads on the lower levels from starving, every
+ * <tt>MLFQScheduler.boostInterval</tt> ticks all threads are moved back up to
+ * the highest level.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multilevel feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		String[] allotments = Config.getString("MLFQScheduler.quanta",
+				"1,2,4").split(",");
+
+		quanta = new int[allotments.length];
+		for (int level = 0; level < quanta.length; level++) {
+			quanta[level] = Integer.parseInt(allotments[level].trim());
+			Lib.assertTrue(quanta[level] > 0);
+		}
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 10000);
+		Lib.assertTrue(boostInterval > 0);
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new multilevel feedback thread queue.
+	 * 
+	 * @param transferPriority ignored. Levels are not donated.
+	 * @return a new multilevel feedback thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread, where 0 is the highest.
+	 * 
+	 * @param thread the thread to get the level of.
+	 * @return the thread's level.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Charge the specified thread for a full time slice, moving it down a
+	 * level if that uses up the allotment of its current level.
+	 * 
+	 * @param thread the thread that used up its time slice.
+	 */
+	public void timeSliceExpired(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (Machine.timer().getTime() >= nextBoost) {
+			boostEpoch++;
+			nextBoost = Machine.timer().getTime() + boostInterval;
+		}
+
+		getThreadState(thread).chargeSlice();
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO queue for each level.
+	 */
+	protected class MLFQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			levels[getThreadState(thread).getLevel()].addLast(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (epoch != boostEpoch)
+				boost();
+
+			for (int level = 0; level < levels.length; level++) {
+				if (!levels[level].isEmpty())
+					return levels[level].removeFirst();
+			}
+
+			return null;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < levels.length; level++)
+				Lib.assertTrue(levels[level].isEmpty());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < levels.length; level++) {
+				for (Iterator<KThread> i = levels[level].iterator(); i.hasNext();)
+					System.out.print(i.next() + "(" + level + ") ");
+			}
+		}
+
+		/**
+		 * Move every waiting thread back up to the highest level, preserving
+		 * the order in which they would otherwise have run. Done lazily, the
+		 * first time the queue is used after a boost.
+		 */
+		private void boost() {
+			epoch = boostEpoch;
+
+			for (int level = 1; level < levels.length; level++) {
+				while (!levels[level].isEmpty()) {
+					// its state catches up with the boost in getLevel()
+					levels[0].addLast(levels[level].removeFirst());
+				}
+			}
+		}
+
+		private ArrayDeque<KThread>[] levels = newLevels();
+
+		private long epoch = boostEpoch;
+	}
+
+	private ArrayDeque<KThread>[] newLevels() {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		ArrayDeque<KThread>[] levels = new ArrayDeque[quanta.length];
+		for (int level = 0; level < levels.length; level++)
+			levels[level] = new ArrayDeque<KThread>();
+
+		return levels;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how many time slices
+	 * it has used up at that level.
+	 */
+	protected class ThreadState {
+		/**
+		 * Return the level of the associated thread, first moving it back to
+		 * the highest level if there has been a boost since it was last
+		 * scheduled.
+		 * 
+		 * @return the level of the associated thread.
+		 */
+		public int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				slicesUsed = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Charge the associated thread for one time slice.
+		 */
+		public void chargeSlice() {
+			int level = getLevel();
+
+			if (++slicesUsed >= quanta[level] && level < quanta.length - 1) {
+				this.level = level + 1;
+				slicesUsed = 0;
+			}
+		}
+
+		/** The level of the associated thread, where 0 is the highest. */
+		protected int level = 0;
+
+		/** The number of time slices used up at the current level. */
+		protected int slicesUsed = 0;
+
+		/** The boost epoch in which the level was last valid. */
+		protected long epoch = boostEpoch;
+	}
+
+	/** The allotment of each level, in time slices. */
+	private int[] quanta;
+
+	private long boostInterval;
+
+	private long nextBoost;
+
+	/** Incremented whenever all threads are boosted to the highest level. */
+	private long boostEpoch = 0;
+}
@@ -2,9 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -59,8 +59,8 @@ public class PriorityScheduler extends Scheduler {
 	public void setPriority(KThread thread, int priority) {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		Lib.assertTrue(priority >= priorityMinimum
-				&& priority <= priorityMaximum);
+		Lib.assertTrue(priority >= getPriorityMinimum()
+				&& priority <= getPriorityMaximum());
 
 		getThreadState(thread).setPriority(priority);
 	}
@@ -72,7 +72,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMaximum)
+		if (priority == getPriorityMaximum())
 			ret = false;
 		else
 			setPriority(thread, priority + 1);
@@ -88,7 +88,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMinimum)
+		if (priority == getPriorityMinimum())
 			ret = false;
 		else
 			setPriority(thread, priority - 1);
@@ -97,6 +97,24 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Return the minimum priority that this scheduler allows a thread to have.
+	 * 
+	 * @return <tt>priorityMinimum</tt>.
+	 */
+	protected int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the maximum priority that this scheduler allows a thread to have.
+	 * 
+	 * @return <tt>priorityMaximum</tt>.
+	 */
+	protected int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -126,7 +144,11 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. Waiting threads
+	 * are kept in a binary max-heap ordered by effective priority, and then by
+	 * the order in which they started waiting. Each thread remembers its index
+	 * in the heap, so that it can be moved in O(log n) time when its effective
+	 * priority changes.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +167,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			if (size == 0) {
+				// nobody is waiting, so the resource is no longer held
+				setOwner(null);
+				return null;
+			}
+
+			ThreadState next = heap[0];
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +188,145 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size == 0) ? null : heap[0];
+		}
+
+		/**
+		 * Return the highest effective priority of any thread waiting in this
+		 * queue, which is what the queue donates to its owner.
+		 * 
+		 * @return the donated priority, or <tt>priorityMinimum</tt> if no
+		 * thread is waiting.
+		 */
+		protected int getDonation() {
+			return (size == 0) ? priorityMinimum
+					: heap[0].getEffectivePriority();
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			ThreadState[] waiting = Arrays.copyOf(heap, size);
+			Arrays.sort(waiting, new Comparator<ThreadState>() {
+				public int compare(ThreadState s1, ThreadState s2) {
+					// higher effective priority first, then longest waiting
+					int c = Integer.compare(s2.getEffectivePriority(),
+							s1.getEffectivePriority());
+					if (c != 0)
+						return c;
+
+					return Long.compare(s1.waitTime, s2.waitTime);
+				}
+			});
+
+			for (int i = 0; i < waiting.length; i++)
+				System.out.print(waiting[i].thread + "("
+						+ waiting[i].getEffectivePriority() + ") ");
+			System.out.println();
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue's resource, taking
+		 * the queue's donation away from the previous owner.
+		 */
+		void setOwner(ThreadState newOwner) {
+			if (!transferPriority)
+				return;
+
+			ThreadState oldOwner = owner;
+			owner = newOwner;
+
+			if (oldOwner != null && oldOwner != newOwner)
+				oldOwner.release(this);
+			if (newOwner != null && oldOwner != newOwner)
+				newOwner.own(this);
+		}
+
+		/**
+		 * Called when a waiting thread's effective priority changes, to restore
+		 * the heap order and pass any change on to the owner.
+		 */
+		void update(ThreadState state, int oldPriority) {
+			if (state.getEffectivePriority() > oldPriority)
+				siftUp(state.queueIndex);
+			else
+				siftDown(state.queueIndex);
+
+			if (owner != null)
+				owner.updateEffectivePriority();
+		}
+
+		void add(ThreadState state) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			state.waitTime = numWaits++;
+			state.queueIndex = size;
+			heap[size++] = state;
+			siftUp(state.queueIndex);
+
+			if (owner != null)
+				owner.updateEffectivePriority();
+		}
+
+		void remove(ThreadState state) {
+			int i = state.queueIndex;
+			Lib.assertTrue(heap[i] == state);
+
+			size--;
+			if (i != size) {
+				set(i, heap[size]);
+				siftDown(i);
+				siftUp(heap[i].queueIndex);
+			}
+			heap[size] = null;
+			state.queueIndex = -1;
+
+			if (owner != null)
+				owner.updateEffectivePriority();
+		}
+
+		/**
+		 * Test whether <i>s1</i> should leave the queue before <i>s2</i>.
+		 */
+		private boolean before(ThreadState s1, ThreadState s2) {
+			if (s1.getEffectivePriority() != s2.getEffectivePriority())
+				return s1.getEffectivePriority() > s2.getEffectivePriority();
+			else
+				return s1.waitTime < s2.waitTime;
+		}
+
+		private void set(int i, ThreadState state) {
+			heap[i] = state;
+			state.queueIndex = i;
+		}
+
+		private void siftUp(int i) {
+			ThreadState state = heap[i];
+			while (i > 0 && before(state, heap[(i - 1) / 2])) {
+				set(i, heap[(i - 1) / 2]);
+				i = (i - 1) / 2;
+			}
+			set(i, state);
+		}
+
+		private void siftDown(int i) {
+			ThreadState state = heap[i];
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				set(i, heap[child]);
+				i = child;
+			}
+			set(i, state);
 		}
 
 		/**
@@ -170,6 +334,15 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread holding the resource, if this queue transfers priority. */
+		protected ThreadState owner = null;
+
+		private ThreadState[] heap = new ThreadState[initialCapacity];
+
+		private int size = 0;
+
+		private long numWaits = 0;
 	}
 
 	/**
@@ -189,7 +362,8 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
-			setPriority(priorityDefault);
+			priority = priorityDefault;
+			effectivePriority = priorityDefault;
 		}
 
 		/**
@@ -207,8 +381,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +395,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +411,10 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
 		}
 
 		/**
@@ -252,7 +428,46 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (this.waitQueue == waitQueue)
+				this.waitQueue = null;
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread from its
+		 * own priority and the donations of the queues it owns. If it changes,
+		 * the queue the thread is waiting on is reordered, and the change is
+		 * passed on to that queue's owner, and so on along the chain.
+		 */
+		protected void updateEffectivePriority() {
+			int oldPriority = effectivePriority;
+
+			effectivePriority = priority;
+			for (PriorityQueue queue : ownedQueues)
+				effectivePriority = Math.max(effectivePriority,
+						queue.getDonation());
+
+			if (effectivePriority != oldPriority && waitQueue != null)
+				waitQueue.update(this, oldPriority);
+		}
+
+		/**
+		 * Called when the associated thread becomes the owner of a queue that
+		 * transfers priority.
+		 */
+		void own(PriorityQueue queue) {
+			ownedQueues.add(queue);
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread stops owning a queue that transfers
+		 * priority.
+		 */
+		void release(PriorityQueue queue) {
+			ownedQueues.remove(queue);
+			updateEffectivePriority();
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +475,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitQueue = null;
+
+		/** The queues whose resources the associated thread holds. */
+		protected HashSet<PriorityQueue> ownedQueues =
+				new HashSet<PriorityQueue>();
+
+		/** The position of this thread in <tt>waitQueue</tt>. */
+		int queueIndex = -1;
+
+		/** When this thread started waiting, to break ties in FIFO order. */
+		long waitTime;
 	}
+
+	private static final int initialCapacity = 16;
 }
@@ -151,4 +151,16 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the timer interrupt handler, with interrupts disabled, just
+	 * before it forces the specified thread to yield. The thread has therefore
+	 * run until the end of a time slice. Schedulers that adjust priorities by
+	 * CPU usage can account for it here.
+	 * 
+	 * @param thread the thread that used up its time slice.
+	 */
+	public void timeSliceExpired(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
 }
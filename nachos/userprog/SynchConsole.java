@@ -41,24 +41,46 @@ public class SynchConsole {
 	 * and no byte was available.
 	 */
 	public int readByte(boolean block) {
-		int value;
+		byte[] buf = new byte[1];
+
+		return read(buf, 0, 1, block) == 1 ? buf[0] & 0xFF : -1;
+	}
+
+	/**
+	 * Copy up to <i>length</i> bytes that have been received into
+	 * <i>buf</i>. If no bytes have arrived yet, blocks until one arrives, or
+	 * returns immediately, depending on the value of <i>block</i>.
+	 * 
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the offset in the buffer to start storing bytes.
+	 * @param length the maximum number of bytes to read.
+	 * @param block <tt>true</tt> if <tt>read()</tt> should wait for a byte if
+	 * none is available.
+	 * @return the number of bytes read.
+	 */
+	public int read(byte[] buf, int offset, int length, boolean block) {
 		boolean intStatus = Machine.interrupt().disable();
 		readLock.acquire();
 
-		if (block || charAvailable) {
-			charAvailable = false;
+		while (block && length > 0 && inputCount == 0) {
+			readWaiting = true;
 			readWait.P();
-
-			value = console.readByte();
-			Lib.assertTrue(value != -1);
 		}
-		else {
-			value = -1;
+
+		int amount = Math.min(length, inputCount);
+		copyOut(inputBuffer, inputHead, buf, offset, amount);
+		inputHead = (inputHead + amount) % bufferSize;
+		inputCount -= amount;
+
+		// a byte the buffer had no room for is still waiting in the console
+		if (inputPending && inputCount < bufferSize) {
+			inputPending = false;
+			receiveInterrupt();
 		}
 
 		readLock.release();
 		Machine.interrupt().restore(intStatus);
-		return value;
+		return amount;
 	}
 
 	/**
@@ -71,19 +93,76 @@ public class SynchConsole {
 	}
 
 	private void receiveInterrupt() {
-		charAvailable = true;
-		readWait.V();
+		if (inputCount == bufferSize) {
+			inputPending = true;
+			return;
+		}
+
+		int value = console.readByte();
+		Lib.assertTrue(value != -1);
+
+		inputBuffer[(inputHead + inputCount) % bufferSize] = (byte) value;
+		inputCount++;
+
+		if (readWaiting) {
+			readWaiting = false;
+			readWait.V();
+		}
 	}
 
 	/**
-	 * Send a byte. Blocks until the send is complete.
+	 * Send a byte. Blocks only if the output buffer is full.
 	 * 
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
+		write(new byte[] { (byte) value }, 0, 1);
+	}
+
+	/**
+	 * Queue <i>length</i> bytes from <i>buf</i> to be sent, blocking only
+	 * while the output buffer is full. The bytes are sent in order, one per
+	 * send interrupt, after this method returns.
+	 * 
+	 * @param buf the buffer holding the bytes to send.
+	 * @param offset the offset in the buffer of the first byte to send.
+	 * @param length the number of bytes to send.
+	 */
+	public void write(byte[] buf, int offset, int length) {
 		writeLock.acquire();
-		console.writeByte(value);
-		writeWait.P();
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (length > 0) {
+			while (outputCount == bufferSize)
+				waitForSend();
+
+			int amount = Math.min(length, bufferSize - outputCount);
+			copyIn(buf, offset, outputBuffer,
+					(outputHead + outputCount) % bufferSize, amount);
+			outputCount += amount;
+			offset += amount;
+			length -= amount;
+
+			if (!sending)
+				sendNext();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		writeLock.release();
+	}
+
+	/**
+	 * Block until every byte written so far has been sent. The kernel calls
+	 * this before halting the machine, so that no output is lost.
+	 */
+	public void flush() {
+		writeLock.acquire();
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (sending)
+			waitForSend();
+
+		Machine.interrupt().restore(intStatus);
 		writeLock.release();
 	}
 
@@ -97,10 +176,52 @@ public class SynchConsole {
 	}
 
 	private void sendInterrupt() {
-		writeWait.V();
+		if (outputCount > 0)
+			sendNext();
+		else
+			sending = false;
+
+		if (writeWaiting) {
+			writeWaiting = false;
+			writeWait.V();
+		}
+	}
+
+	private void sendNext() {
+		sending = true;
+		console.writeByte(outputBuffer[outputHead]);
+		outputHead = (outputHead + 1) % bufferSize;
+		outputCount--;
+	}
+
+	private void waitForSend() {
+		writeWaiting = true;
+		writeWait.P();
+	}
+
+	/**
+	 * Copy <i>length</i> bytes out of a ring buffer, starting at index
+	 * <i>head</i>, into <i>buf</i>.
+	 */
+	private static void copyOut(byte[] ring, int head, byte[] buf, int offset,
+			int length) {
+		int first = Math.min(length, ring.length - head);
+		System.arraycopy(ring, head, buf, offset, first);
+		System.arraycopy(ring, 0, buf, offset + first, length - first);
 	}
 
-	private boolean charAvailable = false;
+	/**
+	 * Copy <i>length</i> bytes from <i>buf</i> into a ring buffer, starting
+	 * at index <i>tail</i>.
+	 */
+	private static void copyIn(byte[] buf, int offset, byte[] ring, int tail,
+			int length) {
+		int first = Math.min(length, ring.length - tail);
+		System.arraycopy(buf, offset, ring, tail, first);
+		System.arraycopy(buf, offset + first, ring, 0, length - first);
+	}
+
+	private static final int bufferSize = 256;
 
 	private SerialConsole console;
 
@@ -108,6 +229,27 @@ public class SynchConsole {
 
 	private Lock writeLock = new Lock();
 
+	/*
+	 * Bytes received but not yet read, and bytes written but not yet sent,
+	 * each kept as a ring buffer. The interrupt handlers change these, so
+	 * they are only accessed with interrupts disabled.
+	 */
+	private byte[] inputBuffer = new byte[bufferSize];
+
+	private int inputHead = 0, inputCount = 0;
+
+	// a received byte is waiting in the console for room in the buffer
+	private boolean inputPending = false;
+
+	private byte[] outputBuffer = new byte[bufferSize];
+
+	private int outputHead = 0, outputCount = 0;
+
+	// the console is sending a byte
+	private boolean sending = false;
+
+	private boolean readWaiting = false, writeWaiting = false;
+
 	private Semaphore readWait = new Semaphore(0);
 
 	private Semaphore writeWait = new Semaphore(0);
@@ -128,25 +270,14 @@ public class SynchConsole {
 			if (!canRead)
 				return 0;
 
-			int i;
-			for (i = 0; i < length; i++) {
-				int value = SynchConsole.this.readByte(false);
-				if (value == -1)
-					break;
-
-				buf[offset + i] = (byte) value;
-			}
-
-			return i;
+			return SynchConsole.this.read(buf, offset, length, false);
 		}
 
 		public int write(byte[] buf, int offset, int length) {
 			if (!canWrite)
 				return 0;
 
-			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
-
+			SynchConsole.this.write(buf, offset, length);
 			return length;
 		}
 
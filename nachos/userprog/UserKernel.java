@@ -4,9 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList;
-import java.util.List;
-
 /**
  * A kernel that can support multiple user processes.
  */
@@ -27,8 +24,6 @@ public class UserKernel extends ThreadedKernel {
 
 		console = new SynchConsole(Machine.console());
 
-		freePhysicalPages = new LinkedList<>();
-
 		lockOfFreePhysPageList = new Lock();
 
 		Machine.processor().setExceptionHandler(new Runnable() {
@@ -43,9 +38,13 @@ public class UserKernel extends ThreadedKernel {
 
 	private void initialFreePhysicalPageList() {
 		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		// pop from the top, so that page 0 is handed out first
+		freePhysicalPages = new int[numPhysPages];
 		for (int i = 0; i < numPhysPages; i++) {
-			freePhysicalPages.add(i);
+			freePhysicalPages[i] = numPhysPages - 1 - i;
 		}
+		numFreePhysicalPages = numPhysPages;
 	}
 
 	public static void increaseLiveProcess() {
@@ -149,30 +148,105 @@ public class UserKernel extends ThreadedKernel {
 		KThread.currentThread().finish();
 	}
 
+	/**
+	 * Allocate a single free physical page.
+	 *
+	 * @return the physical page number, or -1 if no page is free.
+	 */
 	public static int getAFreePhysicalPage() {
 		lockOfFreePhysPageList.acquire();
 
 		int result = -1;
-		if (freePhysicalPages.size() != 0) {
-			result = freePhysicalPages.remove(0);
+		if (numFreePhysicalPages != 0) {
+			result = freePhysicalPages[--numFreePhysicalPages];
+		}
+
+		lockOfFreePhysPageList.release();
+		return result;
+	}
+
+	/**
+	 * Allocate <i>n</i> free physical pages at once. Either all of the pages
+	 * are allocated or, if fewer than <i>n</i> are free, none are.
+	 *
+	 * @param n the number of pages to allocate.
+	 * @param out the array that receives the physical page numbers, which
+	 * must have room for at least <i>n</i> entries.
+	 * @return <tt>true</tt> if the pages were allocated.
+	 */
+	public static boolean allocatePhysicalPages(int n, int[] out) {
+		Lib.assertTrue(n >= 0 && n <= out.length);
+
+		lockOfFreePhysPageList.acquire();
+
+		boolean result = false;
+		if (numFreePhysicalPages >= n) {
+			numFreePhysicalPages -= n;
+			for (int i = 0; i < n; i++) {
+				out[i] = freePhysicalPages[numFreePhysicalPages + n - 1 - i];
+			}
+			result = true;
 		}
 
 		lockOfFreePhysPageList.release();
 		return result;
 	}
 
+	/**
+	 * Return a physical page to the free pool.
+	 *
+	 * @param ppn the physical page number.
+	 */
 	public static void releasePhysicalPage(int ppn) {
 		lockOfFreePhysPageList.acquire();
 
-		freePhysicalPages.add(ppn);
+		Lib.assertTrue(numFreePhysicalPages < freePhysicalPages.length);
+		freePhysicalPages[numFreePhysicalPages++] = ppn;
 
 		lockOfFreePhysPageList.release();
 	}
 
+	/**
+	 * Return several physical pages to the free pool at once.
+	 *
+	 * @param ppns the physical page numbers.
+	 */
+	public static void releasePhysicalPages(int[] ppns) {
+		lockOfFreePhysPageList.acquire();
+
+		Lib.assertTrue(numFreePhysicalPages + ppns.length
+				<= freePhysicalPages.length);
+		for (int i = ppns.length - 1; i >= 0; i--) {
+			freePhysicalPages[numFreePhysicalPages++] = ppns[i];
+		}
+
+		lockOfFreePhysPageList.release();
+	}
+
+	/**
+	 * Return the number of physical pages that are currently free.
+	 *
+	 * @return the number of free physical pages.
+	 */
+	public static int getNumFreePhysicalPages() {
+		return numFreePhysicalPages;
+	}
+
+	/**
+	 * Return the number of physical pages that are currently allocated.
+	 *
+	 * @return the number of allocated physical pages.
+	 */
+	public static int getNumUsedPhysicalPages() {
+		return freePhysicalPages.length - numFreePhysicalPages;
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		console.flush();
+
 		super.terminate();
 	}
 
@@ -182,8 +256,10 @@ public class UserKernel extends ThreadedKernel {
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 
-	// free physical pages
-	private static List<Integer> freePhysicalPages;
+	// free physical pages, used as a stack
+	private static int[] freePhysicalPages;
+
+	private static int numFreePhysicalPages;
 
 	private static Lock lockOfFreePhysPageList;
 
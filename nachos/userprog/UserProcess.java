@@ -116,18 +116,81 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength + 1];
+		byte[] memory = Machine.processor().getMemory();
 
-		int bytesRead = readVirtualMemory(vaddr, bytes);
+		// find the terminator in place, a page at a time
+		int length = 0;
+		while (length <= maxLength) {
+			int paddr = translate(vaddr + length, false);
+			if (paddr == -1)
+				return null;
+
+			int pageEnd = paddr - Processor.offsetFromAddress(paddr) + pageSize;
+			int end = Math.min(pageEnd, paddr + maxLength + 1 - length);
+
+			for (int i = paddr; i < end; i++) {
+				if (memory[i] == 0) {
+					// most strings lie within a single page
+					if (length == 0)
+						return new String(memory, paddr, i - paddr);
+
+					byte[] bytes = new byte[length + i - paddr];
+					readVirtualMemory(vaddr, bytes);
+					return new String(bytes);
+				}
+			}
 
-		for (int length = 0; length < bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+			length += end - paddr;
 		}
 
 		return null;
 	}
 
+	/**
+	 * Read a 32-bit integer from this process's virtual memory.
+	 *
+	 * @param vaddr the virtual address of the integer.
+	 * @param value an array whose first element receives the integer.
+	 * @return <tt>true</tt> if the integer was read.
+	 */
+	public boolean readVirtualMemoryInt(int vaddr, int[] value) {
+		int paddr = translate(vaddr, false);
+		if (paddr == -1)
+			return false;
+
+		// an integer that crosses a page boundary is copied a byte at a time
+		if (Processor.offsetFromAddress(paddr) > pageSize - 4) {
+			byte[] bytes = new byte[4];
+			if (readVirtualMemory(vaddr, bytes) < 4)
+				return false;
+
+			value[0] = Lib.bytesToInt(bytes, 0);
+			return true;
+		}
+
+		value[0] = Lib.bytesToInt(Machine.processor().getMemory(), paddr);
+		return true;
+	}
+
+	/**
+	 * Write a 32-bit integer to this process's virtual memory.
+	 *
+	 * @param vaddr the virtual address of the integer.
+	 * @param value the integer to write.
+	 * @return <tt>true</tt> if the integer was written.
+	 */
+	public boolean writeVirtualMemoryInt(int vaddr, int value) {
+		int paddr = translate(vaddr, true);
+		if (paddr == -1)
+			return false;
+
+		if (Processor.offsetFromAddress(paddr) > pageSize - 4)
+			return writeVirtualMemory(vaddr, Lib.bytesFromInt(value)) == 4;
+
+		Lib.bytesFromInt(Machine.processor().getMemory(), paddr, value);
+		return true;
+	}
+
 	/**
 	 * Transfer data from this process's virtual memory to all of the specified
 	 * array. Same as <tt>readVirtualMemory(vaddr, data, 0, data.length)</tt>.
@@ -155,49 +218,7 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0
-				&& offset + length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= numPages * pageSize) {
-			return 0;
-		}
-//		if (vaddr < 0 || vaddr >= memory.length || vaddr + length >= numPages * pageSize)
-//			return 0;
-
-		int currVaddr = vaddr;
-		int totalAmount = 0;
-		while (currVaddr < vaddr + length && currVaddr < numPages * pageSize) {
-			int vpn = Processor.pageFromAddress(currVaddr);
-			int ppn = pageTable[vpn].ppn;
-			int addrOffset = Processor.offsetFromAddress(currVaddr);
-			int paddr = pageSize * ppn + addrOffset;
-
-			int nextPageVaddr = pageSize * (vpn + 1);
-			int amount;
-			if (nextPageVaddr < vaddr + length && nextPageVaddr < numPages * pageSize) {
-				amount = nextPageVaddr - currVaddr;
-
-			} else {
-				amount = Math.min(vaddr + length, numPages * pageSize) - currVaddr;
-//				amount = vaddr + length - currVaddr;
-			}
-			System.arraycopy(memory, paddr, data, offset, amount);
-			currVaddr = nextPageVaddr;
-			offset += amount;
-			totalAmount += amount;
-		}
-//		int vpn = Processor.pageFromAddress(vaddr);
-//		int addrOffset = Processor.offsetFromAddress(vaddr);
-//		int ppn = pageTable[vpn].ppn;
-//		int paddr = pageSize * ppn + addrOffset;
-//
-//		int amount = Math.min(length, memory.length - vaddr);
-//		System.arraycopy(memory, vaddr, data, offset, amount);
-
-		return totalAmount;
+		return copyVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -227,45 +248,97 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return copyVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy data between this process's virtual memory and the specified
+	 * array, translating each page once and stopping at the first page that
+	 * cannot be accessed.
+	 */
+	private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+			int length, boolean writing) {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
 
-		// for now, just assume that virtual addresses equal physical addresses
-//		if (vaddr < 0 || vaddr >= memory.length || vaddr + length >= numPages * pageSize)
-//			return 0;
-		if (vaddr < 0 || vaddr >= numPages * pageSize) {
-			return 0;
-		}
+		int total = 0;
+		while (total < length) {
+			int paddr = translate(vaddr + total, writing);
+			if (paddr == -1)
+				break;
 
-		int currVaddr = vaddr;
-		int totalAmount = 0;
-		while (currVaddr < vaddr + length && currVaddr < numPages * pageSize) {
-			int vpn = Processor.pageFromAddress(currVaddr);
-			int ppn = pageTable[vpn].ppn;
-			int addrOffset = Processor.offsetFromAddress(currVaddr);
-			int paddr = pageSize * ppn + addrOffset;
-
-			int nextPageVaddr = pageSize * (vpn + 1);
-			int amount;
-			if (nextPageVaddr < vaddr + length && nextPageVaddr < numPages * pageSize) {
-				amount = nextPageVaddr - currVaddr;
-
-			} else {
-				amount = Math.min(vaddr + length, numPages * pageSize) - currVaddr;
-//				amount = vaddr + length - currVaddr;
-			}
-			System.arraycopy(data, offset, memory, paddr, amount);
-			currVaddr = nextPageVaddr;
-			offset += amount;
-			totalAmount += amount;
+			int amount = Math.min(length - total,
+					pageSize - Processor.offsetFromAddress(paddr));
+
+			if (writing)
+				System.arraycopy(data, offset + total, memory, paddr, amount);
+			else
+				System.arraycopy(memory, paddr, data, offset + total, amount);
+
+			total += amount;
 		}
 
-//		int amount = Math.min(length, memory.length - vaddr);
-//		System.arraycopy(data, offset, memory, vaddr, amount);
+		return total;
+	}
 
-		return totalAmount;
+	/**
+	 * Translate a virtual address to a physical address, checking that it
+	 * lies within the address space and that its page may be accessed.
+	 *
+	 * @param vaddr the virtual address.
+	 * @param writing <tt>true</tt> if the kernel is about to write the page.
+	 * @return the physical address, or -1 if the page cannot be accessed.
+	 */
+	private int translate(int vaddr, boolean writing) {
+		if (vaddr < 0 || vaddr >= numPages * pageSize)
+			return -1;
+
+		int ppn = getPhysicalPage(Processor.pageFromAddress(vaddr), writing);
+		if (ppn == -1)
+			return -1;
+
+		return ppn * pageSize + Processor.offsetFromAddress(vaddr);
+	}
+
+	/**
+	 * Return the physical page backing the specified virtual page, so that the
+	 * kernel can copy data to or from it. A process that does not keep all of
+	 * its pages in memory should bring the page in before returning.
+	 *
+	 * @param vpn the virtual page, which must be within the address space.
+	 * @param writing <tt>true</tt> if the kernel is about to write the page.
+	 * @return the physical page number, or -1 if the page is unavailable.
+	 */
+	protected int getPhysicalPage(int vpn, boolean writing) {
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || (writing && entry.readOnly))
+			return -1;
+
+		return entry.ppn;
+	}
+
+	/**
+	 * Return the physical page backing the specified virtual page, as
+	 * <tt>getPhysicalPage()</tt> does, and keep it there until
+	 * <tt>unpinPhysicalPage()</tt> is called. The kernel pins a page while it
+	 * hands the page's memory directly to an operation that may block.
+	 *
+	 * @param vpn the virtual page, which must be within the address space.
+	 * @param writing <tt>true</tt> if the kernel is about to write the page.
+	 * @return the physical page number, or -1 if the page is unavailable.
+	 */
+	protected int pinPhysicalPage(int vpn, boolean writing) {
+		return getPhysicalPage(vpn, writing);
+	}
+
+	/**
+	 * Release a physical page pinned by <tt>pinPhysicalPage()</tt>.
+	 *
+	 * @param ppn the physical page.
+	 */
+	protected void unpinPhysicalPage(int ppn) {
 	}
 
 	private void initialFDTable() {
@@ -352,8 +425,7 @@ public class UserProcess {
 		this.argv = entryOffset;
 
 		for (int i = 0; i < argv.length; i++) {
-			byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-			Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes) == 4);
+			Lib.assertTrue(writeVirtualMemoryInt(entryOffset, stringOffset));
 			entryOffset += 4;
 			Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) == argv[i].length);
 			stringOffset += argv[i].length;
@@ -367,12 +439,17 @@ public class UserProcess {
 	/**
 	 * Initialize the page table, the length of page table is numPages
 	 */
-	private boolean initialPageTable() {
+	protected boolean initialPageTable() {
+		// take all the pages at once, so a failed load never holds any
+		int[] ppns = new int[numPages];
+		if (!UserKernel.allocatePhysicalPages(numPages, ppns)) {
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+
 		pageTable = new TranslationEntry[numPages];
 		for (int i = 0; i < numPages; i++) {
-			int ppn = UserKernel.getAFreePhysicalPage();  // if ppn == -1, no enough physical pages to use: return false
-			if (ppn == -1) { return false; }
-			pageTable[i] = new TranslationEntry(i, ppn, true, false, false, false);
+			pageTable[i] = new TranslationEntry(i, ppns[i], true, false, false, false);
 		}
 		return true;
 	}
@@ -414,12 +491,19 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		if (pageTable == null) {
+			return;
+		}
+
+		int[] ppns = new int[pageTable.length];
+		int numPpns = 0;
 		for (int i = 0; i < pageTable.length; i++) {
 			if (pageTable[i] != null) {
-				UserKernel.releasePhysicalPage(pageTable[i].ppn);
+				ppns[numPpns++] = pageTable[i].ppn;
 				pageTable[i] = null;
 			}
 		}
+		UserKernel.releasePhysicalPages(Arrays.copyOf(ppns, numPpns));
 	}
 
 	/**
@@ -450,6 +534,7 @@ public class UserProcess {
 	 */
 	private int handleHalt() {
 
+		UserKernel.console.flush();
 		Machine.halt();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -523,45 +608,138 @@ public class UserProcess {
 	private int openHelper(String filename, boolean create) {
 		OpenFile openFile = UserKernel.fileSystem.open(filename, create);
 		if (openFile != null) {
-			for (int fd = 2; fd < fileDescriptorTable.length; fd++) {
-				if (fileDescriptorTable[fd] == null) {
-					fileDescriptorTable[fd] = openFile;
-					return fd;
-				}
-			}
-			return -1;  // FDT full
+			return addFileDescriptor(openFile);
 		} else {
 			return -1; // file doesn't exist
 		}
 	}
 
-	private int handleRead(int fd, int bufferPointer, int count) { // TODO: How to check bufferPointer
-		if (!(fd >=0 && fd < fileDescriptorTable.length) || fileDescriptorTable[fd] == null || count < 0) { return -1; }
+	/**
+	 * Give the specified file the lowest free file descriptor.
+	 *
+	 * @param openFile the file.
+	 * @return the file descriptor, or -1 if the file descriptor table is full.
+	 */
+	protected int addFileDescriptor(OpenFile openFile) {
+		for (int fd = 2; fd < fileDescriptorTable.length; fd++) {
+			if (fileDescriptorTable[fd] == null) {
+				fileDescriptorTable[fd] = openFile;
+				return fd;
+			}
+		}
+		return -1;  // FDT full
+	}
 
-		byte[] localBuffer = new byte[count];
-		int recv = fileDescriptorTable[fd].read(localBuffer, 0, count);
-		if (recv == -1) { return -1; }
+	private int handleRead(int fd, int bufferPointer, int count) {
+		if (!(fd >=0 && fd < fileDescriptorTable.length) || fileDescriptorTable[fd] == null || count < 0) { return -1; }
 
-		int transfered = writeVirtualMemory(bufferPointer, localBuffer, 0, recv);
-		if (transfered < recv) {
-			return -1;
-		} else {
-			return recv;
-		}
+		return transferFile(fileDescriptorTable[fd], bufferPointer, count, true);
 	}
 
 	private int handleWrite(int fd, int bufferPointer, int count) {
 		if (!(fd >=0 && fd < fileDescriptorTable.length) || fileDescriptorTable[fd] == null || count < 0) { return -1; }
 
-		byte[] localBuffer = new byte[count];
-		int transfered = readVirtualMemory(bufferPointer, localBuffer, 0, count);
-		if (transfered < count) { return -1; }
-		int send =  fileDescriptorTable[fd].write(localBuffer, 0, count);
-		if (send < count) {
+		return transferFile(fileDescriptorTable[fd], bufferPointer, count, false);
+	}
+
+	/**
+	 * Move data directly between a file and the physical pages backing a
+	 * buffer in this process's virtual memory, without copying it through a
+	 * kernel buffer. Every page of the buffer is pinned first, and pages that
+	 * are adjacent in physical memory are merged into a single segment; the
+	 * file operation is then issued once per segment. If a page cannot be
+	 * pinned, the pages already pinned are transferred and released before
+	 * trying again.
+	 *
+	 * @param file the file to read from or write to.
+	 * @param vaddr the first byte of the buffer.
+	 * @param count the number of bytes to transfer.
+	 * @param reading <tt>true</tt> to read from the file into the buffer,
+	 * <tt>false</tt> to write the buffer to the file.
+	 * @return the number of bytes transferred, which is less than
+	 * <i>count</i> if the file operation came up short or a page could not be
+	 * pinned, or -1 if the buffer does not lie inside the address space or
+	 * nothing could be transferred.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int count,
+			boolean reading) {
+		// the whole buffer must lie inside the address space
+		if (count > 0 && (vaddr < 0 || count > numPages * pageSize - vaddr))
 			return -1;
-		} else {
-			return send;
+
+		byte[] memory = Machine.processor().getMemory();
+
+		int maxPages = Math.min(numPages, count / pageSize + 2);
+		int[] pinned = new int[maxPages];
+		int[] segmentAddr = new int[maxPages];
+		int[] segmentLength = new int[maxPages];
+
+		int total = 0;
+		boolean failed = false, stopped = false;
+		while (total < count && !stopped) {
+			int numPinned = 0, numSegments = 0, gathered = 0;
+
+			// pin the rest of the buffer, one page at a time
+			while (total + gathered < count) {
+				int pageVaddr = vaddr + total + gathered;
+				int vpn = Processor.pageFromAddress(pageVaddr);
+				int pageOffset = Processor.offsetFromAddress(pageVaddr);
+
+				int ppn = pinPhysicalPage(vpn, reading);
+				if (ppn == -1)
+					break;
+
+				pinned[numPinned++] = ppn;
+
+				int paddr = ppn * pageSize + pageOffset;
+				int length = Math.min(count - total - gathered, pageSize
+						- pageOffset);
+
+				if (numSegments > 0
+						&& segmentAddr[numSegments - 1]
+								+ segmentLength[numSegments - 1] == paddr) {
+					segmentLength[numSegments - 1] += length;
+				}
+				else {
+					segmentAddr[numSegments] = paddr;
+					segmentLength[numSegments] = length;
+					numSegments++;
+				}
+
+				gathered += length;
+			}
+
+			if (numPinned == 0) {
+				failed = true;
+				break;
+			}
+
+			for (int i = 0; i < numSegments; i++) {
+				int amount;
+				if (reading)
+					amount = file.read(memory, segmentAddr[i], segmentLength[i]);
+				else
+					amount = file.write(memory, segmentAddr[i], segmentLength[i]);
+
+				if (amount > 0)
+					total += amount;
+
+				// a short read means nothing more to read for now
+				if (amount < segmentLength[i]) {
+					failed = amount == -1 || !reading;
+					stopped = true;
+					break;
+				}
+			}
+
+			for (int i = 0; i < numPinned; i++)
+				unpinPhysicalPage(pinned[i]);
 		}
+
+		if (failed && total == 0)
+			return -1;
+
+		return total;
 	}
 
 	private int handleClose(int fd) {
@@ -602,17 +780,15 @@ public class UserProcess {
 		// get the arguments address
 		// each pointer has 4 type, use readvirtualmemory() and track the current vaddr
 		String[] argStrs = new String[argc];
-		byte[] buffer = new byte[4];
+		int[] vaddr = new int[1];
 		for (int i = 0; i < argc; ++i) {
-			int readCount = readVirtualMemory(argv + i * 4, buffer);
-			if (readCount < 4) return -1;
+			if (!readVirtualMemoryInt(argv + i * 4, vaddr)) return -1;
 
-			int vaddr = Lib.bytesToInt(buffer, 0);
-			argStrs[i] = readVirtualMemoryString(vaddr,maxParameterLength);
+			argStrs[i] = readVirtualMemoryString(vaddr[0],maxParameterLength);
 		}
 
 		// create child process
-		UserProcess childProcess = new UserProcess();
+		UserProcess childProcess = newUserProcess();
 		childProcess.parent = this;
 		childProcessLookUpMap.put(childProcess.PID, childProcess);
 		if (childProcess.execute(coffName, argStrs)) {
@@ -642,12 +818,9 @@ public class UserProcess {
 		childProcessLookUpMap.remove(pid);
 
 		// store the status to the *status
-		byte[] buffer = new byte[4];
 		// TODO: check exit status
-		buffer = Lib.bytesFromInt(child.exitStatus);
-		int writeCount = writeVirtualMemory(vaStatus, buffer);
-//		return writeCount == 4 ? 1 : 0;
-		return (child.exitStatus != Integer.MIN_VALUE && writeCount == 4) ? 1:0;
+		boolean written = writeVirtualMemoryInt(vaStatus, child.exitStatus);
+		return (child.exitStatus != Integer.MIN_VALUE && written) ? 1:0;
 	}
 
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
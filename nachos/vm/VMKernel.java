@@ -5,6 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -21,6 +25,18 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+
+		pagingLock = new Lock("paging");
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		frameOwners = new VMProcess[numPhysPages];
+		frameVPNs = new int[numPhysPages];
+		framePins = new int[numPhysPages];
+		sharedFrames = new SharedPage[numPhysPages];
+		sharedPages = new HashMap<SharedPageKey, SharedPage>();
+		clockHand = 0;
+
+		usedSwapSlots = new BitSet();
 	}
 
 	/**
@@ -41,9 +57,347 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (swapFile != null) {
+			swapFile.close();
+			ThreadedKernel.fileSystem.remove(swapFileName);
+		}
+
 		super.terminate();
 	}
 
+	/**
+	 * Return a physical page that is not mapped by any process, evicting a
+	 * resident page if no page is free. The caller must hold
+	 * <tt>pagingLock</tt>, and must call <tt>mapFrame()</tt> once the page
+	 * has been filled.
+	 * 
+	 * @return the physical page number, or -1 if no page could be freed.
+	 */
+	static int allocateFrame() {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		int ppn = UserKernel.getAFreePhysicalPage();
+		if (ppn == -1)
+			ppn = evictFrame();
+
+		return ppn;
+	}
+
+	/**
+	 * Record in the inverted page table that the specified physical page now
+	 * holds virtual page <i>vpn</i> of <i>owner</i>, making it a candidate for
+	 * eviction.
+	 * 
+	 * @param ppn the physical page.
+	 * @param owner the process that maps the page.
+	 * @param vpn the virtual page that it is mapped at.
+	 */
+	static void mapFrame(int ppn, VMProcess owner, int vpn) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		frameOwners[ppn] = owner;
+		frameVPNs[ppn] = vpn;
+	}
+
+	/**
+	 * Unmap the specified physical page and return it to the free list.
+	 * 
+	 * @param ppn the physical page.
+	 */
+	static void releaseFrame(int ppn) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		frameOwners[ppn] = null;
+		UserKernel.releasePhysicalPage(ppn);
+	}
+
+	/**
+	 * Keep the specified physical page from being evicted, until a matching
+	 * call to <tt>unpinFrame()</tt>. The caller must hold <tt>pagingLock</tt>.
+	 * 
+	 * @param ppn the physical page.
+	 */
+	static void pinFrame(int ppn) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		framePins[ppn]++;
+	}
+
+	/**
+	 * Undo a call to <tt>pinFrame()</tt>. The caller must hold
+	 * <tt>pagingLock</tt>.
+	 * 
+	 * @param ppn the physical page.
+	 */
+	static void unpinFrame(int ppn) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+		Lib.assertTrue(framePins[ppn] > 0);
+
+		framePins[ppn]--;
+	}
+
+	/**
+	 * Map a read-only page of an executable into a process, sharing the
+	 * physical page with every other process that has it mapped. The page is
+	 * only read from the executable if no process has it in memory. The
+	 * caller must hold <tt>pagingLock</tt>.
+	 * 
+	 * <p>
+	 * Executables are identified by file name, so an executable must not be
+	 * overwritten while processes are running it.
+	 * 
+	 * @param process the process mapping the page.
+	 * @param executable the name of the executable.
+	 * @param section the section containing the page, which must be
+	 * read-only.
+	 * @param spn the page number within the section.
+	 * @param vpn the virtual page that it is mapped at.
+	 * @return the physical page number, or -1 if no page could be freed.
+	 */
+	static int mapSharedPage(VMProcess process, String executable,
+			CoffSection section, int spn, int vpn) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+		Lib.assertTrue(section.isReadOnly());
+
+		SharedPageKey key = new SharedPageKey(executable, section.getName(),
+				spn);
+		SharedPage page = sharedPages.get(key);
+
+		if (page == null) {
+			int ppn = allocateFrame();
+			if (ppn == -1)
+				return -1;
+
+			Lib.debug(dbgVM, "\tloading shared " + section.getName() + " page "
+					+ vpn + " of " + executable + " into frame " + ppn);
+			section.loadPage(spn, ppn);
+
+			page = new SharedPage(key, ppn, vpn);
+			sharedPages.put(key, page);
+			sharedFrames[ppn] = page;
+		}
+
+		page.sharers.add(process);
+		return page.ppn;
+	}
+
+	/**
+	 * Drop a process's reference to a shared page, releasing the physical page
+	 * when the last reference is dropped. The caller must hold
+	 * <tt>pagingLock</tt>.
+	 * 
+	 * @param process the process unmapping the page.
+	 * @param ppn the physical page.
+	 */
+	static void unmapSharedPage(VMProcess process, int ppn) {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		SharedPage page = sharedFrames[ppn];
+		Lib.assertTrue(page != null && page.sharers.remove(process));
+
+		if (page.sharers.isEmpty()) {
+			sharedPages.remove(page.key);
+			sharedFrames[ppn] = null;
+			UserKernel.releasePhysicalPage(ppn);
+		}
+	}
+
+	/**
+	 * Choose a resident page with the clock algorithm, and evict it. Pages
+	 * that have been used since the hand last passed get a second chance. A
+	 * shared page counts as used if any process sharing it used it, and is
+	 * evicted from all of them at once. Pages pinned by the kernel are skipped.
+	 */
+	private static int evictFrame() {
+		int numPhysPages = frameOwners.length;
+
+		// the first sweep clears every used bit, so two suffice unless every
+		// page is pinned
+		for (int i = 0; i < 2 * numPhysPages; i++) {
+			int ppn = clockHand;
+			clockHand = (clockHand + 1) % numPhysPages;
+
+			if (framePins[ppn] > 0)
+				continue;
+
+			SharedPage shared = sharedFrames[ppn];
+			if (shared != null) {
+				if (shared.clearUsed())
+					continue;
+
+				Lib.debug(dbgVM, "\tevicting shared page " + shared.vpn
+						+ " from frame " + ppn);
+
+				for (VMProcess sharer : shared.sharers)
+					sharer.evictPage(shared.vpn);
+
+				sharedPages.remove(shared.key);
+				sharedFrames[ppn] = null;
+				return ppn;
+			}
+
+			VMProcess owner = frameOwners[ppn];
+			if (owner == null || owner.clearUsed(frameVPNs[ppn]))
+				continue;
+
+			Lib.debug(dbgVM, "\tevicting page " + frameVPNs[ppn]
+					+ " from frame " + ppn);
+
+			frameOwners[ppn] = null;
+			owner.evictPage(frameVPNs[ppn]);
+			return ppn;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Reserve a free page-sized slot in the swap file.
+	 * 
+	 * @return the slot number.
+	 */
+	static int allocateSwapSlot() {
+		int slot = usedSwapSlots.nextClearBit(0);
+		usedSwapSlots.set(slot);
+		return slot;
+	}
+
+	/**
+	 * Return a slot in the swap file to the free pool.
+	 * 
+	 * @param slot the slot number.
+	 */
+	static void releaseSwapSlot(int slot) {
+		Lib.assertTrue(usedSwapSlots.get(slot));
+		usedSwapSlots.clear(slot);
+	}
+
+	/**
+	 * Copy a slot of the swap file into a physical page.
+	 * 
+	 * @param slot the slot to read.
+	 * @param ppn the physical page to fill.
+	 */
+	static void readSwap(int slot, int ppn) {
+		Lib.debug(dbgVM, "\treading swap slot " + slot + " into frame " + ppn);
+
+		byte[] memory = Machine.processor().getMemory();
+		int read = swapFile.read(slot * pageSize, memory, ppn * pageSize,
+				pageSize);
+		Lib.assertTrue(read == pageSize, "swap read failed");
+
+		Machine.incrNumSwapReads();
+	}
+
+	/**
+	 * Copy a physical page into a slot of the swap file, creating the swap
+	 * file the first time it is needed.
+	 * 
+	 * @param slot the slot to write.
+	 * @param ppn the physical page to save.
+	 */
+	static void writeSwap(int slot, int ppn) {
+		Lib.debug(dbgVM, "\twriting frame " + ppn + " to swap slot " + slot);
+
+		if (swapFile == null) {
+			swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+			Lib.assertTrue(swapFile != null, "cannot create swap file");
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		int written = swapFile.write(slot * pageSize, memory, ppn * pageSize,
+				pageSize);
+		Lib.assertTrue(written == pageSize, "swap write failed");
+
+		Machine.incrNumSwapWrites();
+	}
+
+	/**
+	 * Serializes page faults, evictions and the release of a process's pages,
+	 * all of which may block on file I/O.
+	 */
+	static Lock pagingLock;
+
+	private static OpenFile swapFile = null;
+
+	private static BitSet usedSwapSlots;
+
+	// inverted page table: which process and virtual page each frame holds
+	private static VMProcess[] frameOwners;
+
+	private static int[] frameVPNs;
+
+	// the number of times each frame is pinned by the kernel
+	private static int[] framePins;
+
+	private static int clockHand;
+
+	// read-only executable pages, each shared by every process that maps it
+	private static HashMap<SharedPageKey, SharedPage> sharedPages;
+
+	private static SharedPage[] sharedFrames;
+
+	private static class SharedPageKey {
+		SharedPageKey(String executable, String section, int spn) {
+			this.executable = executable;
+			this.section = section;
+			this.spn = spn;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof SharedPageKey))
+				return false;
+
+			SharedPageKey key = (SharedPageKey) o;
+			return executable.equals(key.executable)
+					&& section.equals(key.section) && spn == key.spn;
+		}
+
+		public int hashCode() {
+			return (executable.hashCode() * 31 + section.hashCode()) * 31 + spn;
+		}
+
+		private String executable;
+
+		private String section;
+
+		private int spn;
+	}
+
+	private static class SharedPage {
+		SharedPage(SharedPageKey key, int ppn, int vpn) {
+			this.key = key;
+			this.ppn = ppn;
+			this.vpn = vpn;
+		}
+
+		/**
+		 * Clear the used bit in every process sharing this page.
+		 * 
+		 * @return <tt>true</tt> if any of them had used the page.
+		 */
+		boolean clearUsed() {
+			boolean used = false;
+			for (VMProcess sharer : sharers)
+				used |= sharer.clearUsed(vpn);
+
+			return used;
+		}
+
+		SharedPageKey key;
+
+		int ppn;
+
+		int vpn;
+
+		// the reference count is the number of sharers
+		LinkedList<VMProcess> sharers = new LinkedList<VMProcess>();
+	}
+
+	private static final String swapFileName = "swap";
+
+	private static final int pageSize = Processor.pageSize;
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
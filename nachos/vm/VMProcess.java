@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -16,6 +18,20 @@ public class VMProcess extends UserProcess {
 		super();
 	}
 
+	/**
+	 * Execute the specified program with the specified arguments. Remembers
+	 * the name of the executable, so that its read-only pages can be shared
+	 * with other processes running the same program.
+	 * 
+	 * @param name the name of the file containing the executable.
+	 * @param args the arguments to pass to the executable.
+	 * @return <tt>true</tt> if the program was successfully executed.
+	 */
+	public boolean execute(String name, String[] args) {
+		executableName = name;
+		return super.execute(name, args);
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -32,21 +48,274 @@ public class VMProcess extends UserProcess {
 		super.restoreState();
 	}
 
+	/**
+	 * Initialize the page table with every page invalid, so that no physical
+	 * memory is allocated until a page is first touched.
+	 * 
+	 * @return <tt>true</tt> if successful.
+	 */
+	protected boolean initialPageTable() {
+		pageTable = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+					false);
+
+		swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
+
+		return true;
+	}
+
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
+	 * demand-paged. Records which section backs each page; nothing is read
+	 * from the executable until the page faults.
 	 * 
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		return super.loadSections();
+		pageSections = new CoffSection[numPages];
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+					+ " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+				pageTable[vpn].readOnly = section.isReadOnly();
+				pageSections[vpn] = section;
+			}
+		}
+
+		return true;
 	}
 
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		if (pageTable == null)
+			return;
+
+		VMKernel.pagingLock.acquire();
+
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			if (pageTable[vpn] != null && pageTable[vpn].valid) {
+				if (pageTable[vpn].readOnly)
+					VMKernel.unmapSharedPage(this, pageTable[vpn].ppn);
+				else
+					VMKernel.releaseFrame(pageTable[vpn].ppn);
+
+				pageTable[vpn].valid = false;
+			}
+
+			if (swapSlots[vpn] != -1) {
+				VMKernel.releaseSwapSlot(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+		}
+
+		VMKernel.pagingLock.release();
+	}
+
+	/**
+	 * Return the physical page backing the specified virtual page, faulting it
+	 * in first if it is not yet in memory.
+	 * 
+	 * @param vpn the virtual page, which must be within the address space.
+	 * @param writing <tt>true</tt> if the kernel is about to write the page.
+	 * @return the physical page number, or -1 if the page could not be loaded
+	 * or is read-only and <i>writing</i> is set.
+	 */
+	protected int getPhysicalPage(int vpn, boolean writing) {
+		TranslationEntry entry = pageTable[vpn];
+
+		// read-only pages may be shared with other processes
+		if (writing && entry.readOnly)
+			return -1;
+
+		// another process may evict the page again before the fault returns
+		while (!entry.valid) {
+			if (!handlePageFault(vpn))
+				return -1;
+		}
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		return entry.ppn;
+	}
+
+	/**
+	 * Return the physical page backing the specified virtual page, faulting it
+	 * in first if necessary, and keep it from being evicted until
+	 * <tt>unpinPhysicalPage()</tt> is called.
+	 * 
+	 * @param vpn the virtual page, which must be within the address space.
+	 * @param writing <tt>true</tt> if the kernel is about to write the page.
+	 * @return the physical page number, or -1 if the page could not be loaded
+	 * or is read-only and <i>writing</i> is set.
+	 */
+	protected int pinPhysicalPage(int vpn, boolean writing) {
+		TranslationEntry entry = pageTable[vpn];
+
+		while (true) {
+			int ppn = getPhysicalPage(vpn, writing);
+			if (ppn == -1)
+				return -1;
+
+			// pages are only evicted with the lock held
+			VMKernel.pagingLock.acquire();
+			boolean resident = entry.valid && entry.ppn == ppn;
+			if (resident)
+				VMKernel.pinFrame(ppn);
+			VMKernel.pagingLock.release();
+
+			if (resident)
+				return ppn;
+		}
+	}
+
+	/**
+	 * Allow a page pinned by <tt>pinPhysicalPage()</tt> to be evicted again.
+	 * 
+	 * @param ppn the physical page.
+	 */
+	protected void unpinPhysicalPage(int ppn) {
+		VMKernel.pagingLock.acquire();
+		VMKernel.unpinFrame(ppn);
+		VMKernel.pagingLock.release();
+	}
+
+	/**
+	 * Bring the specified virtual page into physical memory.
+	 * 
+	 * @param vpn the virtual page that faulted.
+	 * @return <tt>true</tt> if the page was brought in.
+	 */
+	private boolean handlePageFault(int vpn) {
+		if (vpn < 0 || vpn >= numPages) {
+			Lib.debug(dbgVM, "\tpage fault outside address space: " + vpn);
+			return false;
+		}
+
+		VMKernel.pagingLock.acquire();
+		boolean success = pageIn(vpn);
+		VMKernel.pagingLock.release();
+
+		return success;
+	}
+
+	/**
+	 * Load a virtual page into a physical page, evicting another page if
+	 * necessary. A page that has been written to swap is read back from swap;
+	 * otherwise pages belonging to a COFF section are read from the
+	 * executable, and stack and argument pages are zero-filled. Read-only
+	 * pages are shared with every other process running the same executable.
+	 * The caller must hold <tt>VMKernel.pagingLock</tt>.
+	 * 
+	 * @param vpn the virtual page to load.
+	 * @return <tt>true</tt> if the page is now valid.
+	 */
+	private boolean pageIn(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		if (entry.valid)
+			return true;
+
+		CoffSection section = pageSections[vpn];
+		int ppn;
+
+		if (entry.readOnly) {
+			ppn = VMKernel.mapSharedPage(this, executableName, section, vpn
+					- section.getFirstVPN(), vpn);
+		}
+		else {
+			ppn = VMKernel.allocateFrame();
+			if (ppn != -1)
+				fillPage(vpn, ppn);
+		}
+
+		if (ppn == -1) {
+			Lib.debug(dbgVM, "\tout of physical memory");
+			return false;
+		}
+
+		entry.ppn = ppn;
+		entry.used = false;
+		entry.dirty = false;
+		entry.valid = true;
+
+		if (!entry.readOnly)
+			VMKernel.mapFrame(ppn, this, vpn);
+
+		return true;
+	}
+
+	/**
+	 * Fill a physical page with the contents of a private virtual page.
+	 * 
+	 * @param vpn the virtual page.
+	 * @param ppn the physical page to fill.
+	 */
+	private void fillPage(int vpn, int ppn) {
+		CoffSection section = pageSections[vpn];
+
+		if (swapSlots[vpn] != -1) {
+			VMKernel.readSwap(swapSlots[vpn], ppn);
+		}
+		else if (section != null) {
+			Lib.debug(dbgVM, "\tloading " + section.getName() + " page " + vpn
+					+ " into frame " + ppn);
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+		}
+		else {
+			Lib.debug(dbgVM, "\tzero-filling page " + vpn + " into frame "
+					+ ppn);
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+		}
+	}
+
+	/**
+	 * Clear the used bit of a resident page, giving it a second chance
+	 * against the clock hand. Called by <tt>VMKernel</tt> with
+	 * <tt>VMKernel.pagingLock</tt> held.
+	 * 
+	 * @param vpn the virtual page.
+	 * @return <tt>true</tt> if the page had been used since last cleared.
+	 */
+	boolean clearUsed(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		boolean used = entry.used;
+		entry.used = false;
+		return used;
+	}
+
+	/**
+	 * Remove a resident page from memory, saving it to swap if it has been
+	 * modified since it was last loaded. A clean page can be brought back from
+	 * wherever it was loaded from. Called by <tt>VMKernel</tt> with
+	 * <tt>VMKernel.pagingLock</tt> held.
+	 * 
+	 * @param vpn the virtual page to evict.
+	 */
+	void evictPage(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		Lib.assertTrue(entry.valid);
+
+		// invalidate first, so the page faults while it is being written
+		entry.valid = false;
+
+		if (entry.dirty) {
+			if (swapSlots[vpn] == -1)
+				swapSlots[vpn] = VMKernel.allocateSwapSlot();
+
+			VMKernel.writeSwap(swapSlots[vpn], entry.ppn);
+			entry.dirty = false;
+		}
 	}
 
 	/**
@@ -60,12 +329,25 @@ public class VMProcess extends UserProcess {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionPageFault:
+			int vaddr = processor.readRegister(Processor.regBadVAddr);
+			// the faulting instruction is restarted once the page is valid
+			if (!handlePageFault(Processor.pageFromAddress(vaddr)))
+				super.handleException(cause);
+			break;
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	private String executableName;
+
+	private CoffSection[] pageSections;
+
+	// the swap slot holding each virtual page, or -1 if it has none
+	private int[] swapSlots;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';